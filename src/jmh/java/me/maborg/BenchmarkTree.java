@@ -0,0 +1,67 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+// Generated folder tree for the benchmarks: every folder down to the given depth has the same number
+// of subfolders and files. Only the last byte of a file is written, so on disk they are sparse and a
+// large tree costs inodes rather than space.
+class BenchmarkTree {
+    private BenchmarkTree() {
+    }
+
+    // depth 0 is the root alone; the tree has (fanout^(depth+1) - 1) / (fanout - 1) folders
+    static Path create(int fanout, int depth, int filesPerFolder, long fileBytes) throws IOException {
+        Path root = Files.createTempDirectory("jtreepie-bench");
+        fill(root, fanout, depth, filesPerFolder, fileBytes);
+        return root;
+    }
+
+    // Same tree in an existing, empty folder of any file system
+    static Path create(Path root, int fanout, int depth, int filesPerFolder, long fileBytes) throws IOException {
+        fill(Files.createDirectories(root), fanout, depth, filesPerFolder, fileBytes);
+        return root;
+    }
+
+    private static void fill(Path folder, int fanout, int depth, int filesPerFolder, long fileBytes)
+            throws IOException {
+        for (int i = 0; i < filesPerFolder; i++) {
+            try (SeekableByteChannel file = Files.newByteChannel(folder.resolve("file" + i),
+                                                                  StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                file.position(fileBytes * (i + 1) - 1).write(ByteBuffer.allocate(1));
+            }
+        }
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < fanout; i++) {
+            fill(Files.createDirectory(folder.resolve("folder" + i)), fanout, depth - 1, filesPerFolder, fileBytes);
+        }
+    }
+
+    static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path folder, IOException e) throws IOException {
+                Files.delete(folder);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,44 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+// Stands in for the GL renderer: counts what it is handed and keeps a checksum, so the JIT cannot
+// drop the visualizer's work as dead code.
+class CountingRenderer implements IMultiPartialDiskRenderer {
+    long instances;
+    long updates;
+    double checksum;
+
+    @Override
+    public void init(int slices) {
+    }
+
+    @Override
+    public void setViewportSize(int width, int height) {
+    }
+
+    @Override
+    public void add(float centerX, float centerY, float startAngle, float sweepAngle, float innerRadius,
+                    float outerRadius, float r, float g, float b, float a) {
+        instances++;
+        checksum += startAngle + sweepAngle + outerRadius + r;
+    }
+
+    @Override
+    public void cleanInstances() {
+    }
+
+    @Override
+    public void updateInstanceData() {
+        updates++;
+    }
+
+    @Override
+    public void render() {
+    }
+
+    @Override
+    public void cleanup() {
+    }
+}
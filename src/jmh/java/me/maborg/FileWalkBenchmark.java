@@ -0,0 +1,105 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reference for ScanBenchmark on disk: the same tree walked on one thread without a store, once the way the
+// scanner used to list folders (File.listFiles, then isFile, isDirectory and length per entry, each a stat)
+// and once the way it does now (a directory stream and one attribute read per entry).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileWalkBenchmark {
+    @Param({"8"})
+    int fanout;
+
+    @Param({"4"})
+    int depth;
+
+    @Param({"8"})
+    int filesPerFolder;
+
+    @Param({"256"})
+    long fileBytes;
+
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchmarkTree.create(fanout, depth, filesPerFolder, fileBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkTree.delete(root);
+    }
+
+    @Benchmark
+    public long listFiles() {
+        long size = 0;
+        Deque<File> folders = new ArrayDeque<>();
+        folders.push(root.toFile());
+        while (!folders.isEmpty()) {
+            File[] files = folders.pop().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isFile()) {
+                    size += file.length();
+                } else if (file.isDirectory()) {
+                    folders.push(file);
+                }
+            }
+        }
+        return size;
+    }
+
+    @Benchmark
+    public long directoryStream() throws IOException {
+        long size = 0;
+        Deque<Path> folders = new ArrayDeque<>();
+        folders.push(root);
+        while (!folders.isEmpty()) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folders.pop())) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+                                                                          LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isRegularFile()) {
+                        size += attributes.size();
+                    } else if (attributes.isDirectory()) {
+                        folders.push(entry);
+                    }
+                }
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,91 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Mouse hover lookups: findPathFromCoordinate over a laid out scan, and the ring index alone filled
+// with far more wedges than a real frame shows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HitTestBenchmark {
+    private static final int POINTS = 1024;
+
+    @Param({"1000000"})
+    int indexedWedges;
+
+    private Path root;
+    private ConcurrentHierarchicalFolderSizeCalculator calculator;
+    private SunburstFolderSizeVisualizer visualizer;
+    private RingIndex ringIndex;
+    private final float[] x = new float[POINTS];
+    private final float[] y = new float[POINTS];
+    private final int[] levels = new int[POINTS];
+    private final float[] angles = new float[POINTS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        root = BenchmarkTree.create(8, 4, 1, 4096);
+        calculator = new ConcurrentHierarchicalFolderSizeCalculator();
+        calculator.startCalculation(root.toString()).awaitTermination();
+        visualizer = new SunburstFolderSizeVisualizer(new CountingRenderer());
+        visualizer.visualize(calculator.getRootFolderInfo(), 0, 0, 0.1f);
+
+        ringIndex = new RingIndex();
+        int perRing = indexedWedges / 8;
+        float sweep = 360f / perRing;
+        for (int level = 0; level < 8; level++) {
+            for (int i = 0; i < perRing; i++) {
+                ringIndex.add(level, i * sweep, sweep, "wedge");
+            }
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < POINTS; i++) {
+            x[i] = random.nextFloat() - 0.5f;
+            y[i] = random.nextFloat() - 0.5f;
+            levels[i] = random.nextInt(8);
+            angles[i] = random.nextFloat() * 360;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        calculator.shutdown();
+        BenchmarkTree.delete(root);
+    }
+
+    @Benchmark
+    public String findPathFromCoordinate() {
+        int point = next++ & (POINTS - 1);
+        return visualizer.findPathFromCoordinate(x[point], y[point]);
+    }
+
+    @Benchmark
+    public String ringIndex() {
+        int point = next++ & (POINTS - 1);
+        return ringIndex.find(levels[point], angles[point]);
+    }
+}
@@ -0,0 +1,86 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Vertices a frame of a large tree submits, with the wedges tessellated by their on-screen arc length and
+// with every wedge at the finest level, at a few zoom levels. The counts are reported next to the time as
+// the vertices and instances of the last frame; they do not vary between frames.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LodBenchmark {
+    @Param({"16"})
+    int fanout;
+
+    @Param({"4"})
+    int depth;
+
+    // Width of a ring in clip units: the whole tree fits at 0.2, 0.8 zooms in on the inner rings
+    @Param({"0.05", "0.2", "0.8"})
+    float radius;
+
+    @Param({"true", "false"})
+    boolean lod;
+
+    private Path root;
+    private ConcurrentHierarchicalFolderSizeCalculator calculator;
+    private ConcurrentHierarchicalFolderSizeCalculator.FolderInfo rootFolder;
+    private VertexCountingRenderer renderer;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Submitted {
+        public long vertices;
+        public long instances;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        root = BenchmarkTree.create(fanout, depth, 1, 4096);
+        calculator = new ConcurrentHierarchicalFolderSizeCalculator();
+        calculator.startCalculation(root.toString()).awaitTermination();
+        rootFolder = calculator.getRootFolderInfo();
+        renderer = new VertexCountingRenderer(lod);
+        renderer.init(32);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        calculator.shutdown();
+        BenchmarkTree.delete(root);
+    }
+
+    // A fresh visualizer lays out and presents every time, as on the first frame at a new zoom
+    @Benchmark
+    public long frame(Submitted submitted) {
+        SunburstFolderSizeVisualizer visualizer = new SunburstFolderSizeVisualizer(renderer);
+        visualizer.setViewportSize(1920, 1080);
+        visualizer.visualize(rootFolder, 0, 0, radius);
+        renderer.render();
+        submitted.vertices = renderer.getSubmittedVertices();
+        submitted.instances = renderer.getSubmittedInstances();
+        return submitted.vertices;
+    }
+}
@@ -0,0 +1,104 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The CPU side of MultiPartialDiskRenderer.add() and updateInstanceData(): picking each wedge's
+// tessellation level and writing it into that level's off heap staging buffer, which tracks the range
+// that differs from the GPU copy. The glBufferSubData itself needs a context and is not measured;
+// the returned byte count is what it would send.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackingBenchmark {
+    @Param({"50000"})
+    int wedges;
+
+    private int[] sliceCounts;
+    private InstanceBuffer[] instanceBuffers;
+    private float[] instances;
+    // Rotated in place by every call, so rotated() itself allocates nothing
+    private float[] rotatedFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sliceCounts = PartialDiskLod.sliceCounts(32);
+        instanceBuffers = new InstanceBuffer[sliceCounts.length];
+        for (int level = 0; level < instanceBuffers.length; level++) {
+            instanceBuffers[level] = new InstanceBuffer(false);
+        }
+        // Eight rings splitting the circle evenly, the way a balanced tree is laid out
+        instances = new float[wedges * InstanceBuffer.FLOATS_PER_INSTANCE];
+        int perRing = Math.max(1, wedges / 8);
+        for (int i = 0; i < wedges; i++) {
+            int ring = Math.min(i / perRing, 7);
+            float sweep = 360f / perRing;
+            float[] instance = {0, 0, (i % perRing) * sweep, sweep, 0.1f * ring, 0.1f * ring + 0.1f,
+                                (i % 7) / 7f, 0.5f, 0.5f, 1f};
+            System.arraycopy(instance, 0, instances, i * InstanceBuffer.FLOATS_PER_INSTANCE, instance.length);
+        }
+        rotatedFrame = Arrays.copyOf(instances, instances.length);
+        pack(instances);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (InstanceBuffer instanceBuffer : instanceBuffers) {
+            instanceBuffer.free();
+        }
+    }
+
+    private long pack(float[] frame) {
+        for (InstanceBuffer instanceBuffer : instanceBuffers) {
+            instanceBuffer.clear();
+        }
+        for (int index = 0; index < frame.length; index += InstanceBuffer.FLOATS_PER_INSTANCE) {
+            int level = PartialDiskLod.level(sliceCounts, frame[index + 3], frame[index + 5], 540f);
+            instanceBuffers[level].add(frame[index], frame[index + 1], frame[index + 2], frame[index + 3],
+                                       frame[index + 4], frame[index + 5],
+                                       frame[index + 6], frame[index + 7], frame[index + 8], frame[index + 9]);
+        }
+        long bytes = 0;
+        for (InstanceBuffer instanceBuffer : instanceBuffers) {
+            bytes += instanceBuffer.dirtyBytes();
+            instanceBuffer.uploaded();
+        }
+        return bytes;
+    }
+
+    // Same frame again: every value is compared, nothing is sent
+    @Benchmark
+    public long unchanged() {
+        return pack(instances);
+    }
+
+    // Every start angle moves, as while the scan is still growing the tree: everything is sent
+    @Benchmark
+    public long rotated() {
+        float[] frame = rotatedFrame;
+        for (int index = 2; index < frame.length; index += InstanceBuffer.FLOATS_PER_INSTANCE) {
+            float start = frame[index] + 0.01f;
+            frame[index] = start >= 360f ? start - 360f : start;
+        }
+        return pack(frame);
+    }
+}
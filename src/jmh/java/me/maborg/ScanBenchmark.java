@@ -0,0 +1,89 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full scan of a generated tree, on disk or in an in-memory file system. After the first iteration the
+// disk tree sits in the OS cache, so both measure the scanner and the store; the gap between them is what
+// the default file system's system calls cost. FileWalkBenchmark keeps the old java.io.File walk of the same
+// tree as the reference for the disk numbers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({"8"})
+    int fanout;
+
+    @Param({"4"})
+    int depth;
+
+    @Param({"8"})
+    int filesPerFolder;
+
+    // Files are written for real in memory, keep them small
+    @Param({"256"})
+    long fileBytes;
+
+    @Param({"DISK", "MEMORY"})
+    String fileSystem;
+
+    @Param({"1", "4"})
+    int threads;
+
+    @Param({"OBJECTS", "COMPACT"})
+    ConcurrentHierarchicalFolderSizeCalculator.StoreType storeType;
+
+    private FileSystem memory;
+    private Path root;
+    private ConcurrentHierarchicalFolderSizeCalculator calculator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (fileSystem.equals("MEMORY")) {
+            memory = Jimfs.newFileSystem(Configuration.unix());
+            root = BenchmarkTree.create(memory.getPath("/tree"), fanout, depth, filesPerFolder, fileBytes);
+        } else {
+            root = BenchmarkTree.create(fanout, depth, filesPerFolder, fileBytes);
+        }
+        calculator = new ConcurrentHierarchicalFolderSizeCalculator(threads, storeType);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        calculator.shutdown();
+        if (memory != null) {
+            memory.close();
+        } else {
+            BenchmarkTree.delete(root);
+        }
+    }
+
+    @Benchmark
+    public long scan() throws InterruptedException {
+        calculator.startCalculation(root).awaitTermination();
+        return calculator.getRootFolderInfo().getSize();
+    }
+}
@@ -0,0 +1,77 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.util.Arrays;
+
+// Stands in for MultiPartialDiskRenderer: buckets each wedge by the same tessellation level and counts the
+// vertices render() would submit. Without lod every wedge takes the finest level, as before tessellation
+// followed the arc length.
+class VertexCountingRenderer implements IMultiPartialDiskRenderer {
+    private final boolean lod;
+    private int[] sliceCounts;
+    private int[] instances;
+    private int[] uploadedInstances;
+    private float pixelsPerUnit = 300f;
+    private long submittedVertices;
+
+    VertexCountingRenderer(boolean lod) {
+        this.lod = lod;
+    }
+
+    @Override
+    public void init(int slices) {
+        sliceCounts = PartialDiskLod.sliceCounts(slices);
+        instances = new int[sliceCounts.length];
+        uploadedInstances = new int[sliceCounts.length];
+    }
+
+    @Override
+    public void setViewportSize(int width, int height) {
+        pixelsPerUnit = PartialDiskLod.pixelsPerUnit(width, height);
+    }
+
+    @Override
+    public void add(float centerX, float centerY, float startAngle, float sweepAngle, float innerRadius,
+                    float outerRadius, float r, float g, float b, float a) {
+        int level = lod ? PartialDiskLod.level(sliceCounts, sweepAngle, outerRadius, pixelsPerUnit)
+            : sliceCounts.length - 1;
+        instances[level]++;
+    }
+
+    @Override
+    public void cleanInstances() {
+        Arrays.fill(instances, 0);
+    }
+
+    @Override
+    public void updateInstanceData() {
+        System.arraycopy(instances, 0, uploadedInstances, 0, instances.length);
+    }
+
+    @Override
+    public void render() {
+        submittedVertices = 0;
+        for (int level = 0; level < sliceCounts.length; level++) {
+            submittedVertices += (long) PartialDiskLod.vertexCount(sliceCounts[level]) * uploadedInstances[level];
+        }
+    }
+
+    @Override
+    public void cleanup() {
+    }
+
+    // Vertices the last render() submitted, over all levels
+    long getSubmittedVertices() {
+        return submittedVertices;
+    }
+
+    long getSubmittedInstances() {
+        long total = 0;
+        for (int count : uploadedInstances) {
+            total += count;
+        }
+        return total;
+    }
+}
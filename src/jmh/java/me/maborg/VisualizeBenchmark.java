@@ -0,0 +1,85 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Layout of a finished scan into a counting renderer: from scratch, as on the first frame or a new root,
+// and again with nothing changed, as on every frame once the scan is done.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VisualizeBenchmark {
+    // 32 makes a tree of a little over a million folders
+    @Param({"8", "32"})
+    int fanout;
+
+    @Param({"4"})
+    int depth;
+
+    // 0 leaves the budget off
+    @Param({"0", "50000"})
+    int instanceBudget;
+
+    private Path root;
+    private ConcurrentHierarchicalFolderSizeCalculator calculator;
+    private ConcurrentHierarchicalFolderSizeCalculator.FolderInfo rootFolder;
+    private SunburstFolderSizeVisualizer retained;
+    private CountingRenderer renderer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        root = BenchmarkTree.create(fanout, depth, 1, 4096);
+        calculator = new ConcurrentHierarchicalFolderSizeCalculator();
+        calculator.startCalculation(root.toString()).awaitTermination();
+        rootFolder = calculator.getRootFolderInfo();
+        renderer = new CountingRenderer();
+        retained = newVisualizer();
+        retained.visualize(rootFolder, 0, 0, 0.1f);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        calculator.shutdown();
+        BenchmarkTree.delete(root);
+    }
+
+    private SunburstFolderSizeVisualizer newVisualizer() {
+        SunburstFolderSizeVisualizer visualizer = new SunburstFolderSizeVisualizer(renderer);
+        visualizer.setViewportSize(1920, 1080);
+        if (instanceBudget > 0) {
+            visualizer.setInstanceBudget(instanceBudget);
+        }
+        return visualizer;
+    }
+
+    @Benchmark
+    public double fresh() {
+        newVisualizer().visualize(rootFolder, 0, 0, 0.1f);
+        return renderer.checksum;
+    }
+
+    @Benchmark
+    public boolean unchanged() {
+        return retained.visualize(rootFolder, 0, 0, 0.1f);
+    }
+}
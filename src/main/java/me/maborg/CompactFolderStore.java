@@ -0,0 +1,518 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static me.maborg.ConcurrentHierarchicalFolderSizeCalculator.FolderInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Folders are int ids into paged primitive arrays: parent, first child / next sibling links,
+// sizes, modification times and an id into a table of interned name segments. Paths are only rebuilt on demand
+// and FolderInfo objects are short lived views over a node id.
+// Appending takes no lock: ids are reserved with a counter, a folder is linked in by a compare and set on its
+// parent's first child, and only adding a page is serialised.
+// The ids of removed folders are handed out again once recycleRemoved() has been called, so a watched tree
+// that keeps changing stays as large as the folders it holds.
+class CompactFolderStore implements IntFolderStore {
+    private static final int PAGE_BITS = 14;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    // Added to the size of a removed folder in the same atomic step that reads it. Size updates that land
+    // after it see the mark and stop there instead of reaching ancestors the folder no longer has.
+    private static final long REMOVED = 1L << 62;
+
+    private final ConcurrentHierarchicalFolderSizeCalculator calculator;
+    private final Object growLock = new Object();
+    // Unlinking rewrites a sibling link in the middle of a list, so removals are serialised among themselves
+    private final Object removeLock = new Object();
+    private final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+    // Pages are never moved once allocated, only the outer arrays are copied when growing
+    private volatile Page[] pages = new Page[0];
+    private volatile String[][] names = new String[0][];
+    private final AtomicInteger nextId = new AtomicInteger();
+    // Under removeLock: roots of removed subtrees, and the ids recycleRemoved() freed from them
+    private int[] removedRoots = new int[0];
+    private int removedRootCount;
+    private int[] freeIds = new int[0];
+    private volatile int freeIdCount;
+    private final AtomicInteger nextNameId = new AtomicInteger();
+    // Set once the root is fully written; readers see an empty store until then
+    private volatile String rootPath;
+    private volatile String separator;
+
+    CompactFolderStore(ConcurrentHierarchicalFolderSizeCalculator calculator) {
+        this.calculator = calculator;
+    }
+
+    @Override
+    public Integer addRoot(String path, String separator) {
+        return addRootId(path, separator);
+    }
+
+    @Override
+    public int addRootId(String path, String separator) {
+        if (!nextId.compareAndSet(0, 1)) {
+            throw new IllegalStateException("The store already has a root");
+        }
+        Page page = pageFor(0);
+        page.parent[0] = NONE;
+        page.name[0] = internName(path);
+        page.firstChild.set(0, NONE);
+        page.nextSibling.set(0, NONE);
+        this.separator = separator;
+        rootPath = path;
+        markChanged(0);
+        return 0;
+    }
+
+    @Override
+    public String getSeparator() {
+        return separator;
+    }
+
+    @Override
+    public Integer addFolder(Integer parent, String path, String name) {
+        return addFolderId(parent, path, name);
+    }
+
+    @Override
+    public int addFolderId(int parent, String path, String name) {
+        int id = freeIdCount > 0 ? reuseId() : NONE;
+        if (id == NONE) {
+            id = nextId.getAndIncrement();
+        }
+        Page page = pageFor(id);
+        int slot = id & PAGE_MASK;
+        page.parent[slot] = parent;
+        page.name[slot] = internName(name);
+        page.firstChild.set(slot, NONE);
+        Page parentPage = page(parent);
+        int parentSlot = parent & PAGE_MASK;
+        int next;
+        do {
+            next = parentPage.firstChild.get(parentSlot);
+            page.nextSibling.set(slot, next);
+            // The successful volatile write publishes the fully initialised node to lock free readers
+        } while (!parentPage.firstChild.compareAndSet(parentSlot, next, id));
+        markChanged(id);
+        return id;
+    }
+
+    // A freed id with its slot reset, or NONE when another append took the last one first
+    private int reuseId() {
+        int id;
+        synchronized (removeLock) {
+            if (freeIdCount == 0) {
+                return NONE;
+            }
+            id = freeIds[--freeIdCount];
+        }
+        Page page = page(id);
+        int slot = id & PAGE_MASK;
+        page.size.set(slot, 0);
+        page.lastModified.set(slot, 0);
+        clearChangedBit(id);
+        return id;
+    }
+
+    // The page holding id, added if the id is the first one past the allocated pages
+    private Page pageFor(int id) {
+        int pageIndex = id >>> PAGE_BITS;
+        Page[] currentPages = pages;
+        if (pageIndex < currentPages.length) {
+            return currentPages[pageIndex];
+        }
+        synchronized (growLock) {
+            currentPages = pages;
+            if (pageIndex >= currentPages.length) {
+                // Ids are reserved out of order, a later page may be asked for before an earlier one
+                int length = currentPages.length;
+                currentPages = Arrays.copyOf(currentPages, pageIndex + 1);
+                for (int i = length; i <= pageIndex; i++) {
+                    currentPages[i] = new Page();
+                }
+                pages = currentPages;
+            }
+            return currentPages[pageIndex];
+        }
+    }
+
+    // Only the thread that creates a name's id writes it, outside of any store wide lock
+    private int internName(String name) {
+        Integer existing = nameIds.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        return nameIds.computeIfAbsent(name, this::newName);
+    }
+
+    private int newName(String name) {
+        int id = nextNameId.getAndIncrement();
+        int pageIndex = id >>> PAGE_BITS;
+        String[][] currentNames = names;
+        if (pageIndex >= currentNames.length) {
+            synchronized (growLock) {
+                currentNames = names;
+                if (pageIndex >= currentNames.length) {
+                    int length = currentNames.length;
+                    currentNames = Arrays.copyOf(currentNames, pageIndex + 1);
+                    for (int i = length; i <= pageIndex; i++) {
+                        currentNames[i] = new String[PAGE_SIZE];
+                    }
+                    names = currentNames;
+                }
+            }
+        }
+        // Published to readers by the node's link, which is written after this
+        currentNames[pageIndex][id & PAGE_MASK] = name;
+        return id;
+    }
+
+    @Override
+    public void addSize(Integer folder, long delta) {
+        addSize(folder.intValue(), delta);
+    }
+
+    @Override
+    public void addSize(int folder, long delta) {
+        for (int id = folder; id != NONE; id = parentOf(id)) {
+            if (isRemoved(page(id).size.addAndGet(id & PAGE_MASK, delta))) {
+                return;
+            }
+            // Set after the size so a consumer that cleared the bit first cannot miss the change
+            setChangedBit(id);
+        }
+    }
+
+    // Sizes stay far below the mark, even counting the deltas of a removal still under way
+    private static boolean isRemoved(long size) {
+        return size >= REMOVED / 2;
+    }
+
+    private long sizeOf(int id) {
+        long size = page(id).size.get(id & PAGE_MASK);
+        return isRemoved(size) ? size - REMOVED : size;
+    }
+
+    private void markChanged(int folder) {
+        for (int id = folder; id != NONE; id = parentOf(id)) {
+            setChangedBit(id);
+        }
+    }
+
+    private void setChangedBit(int id) {
+        AtomicIntegerArray changed = page(id).changed;
+        int word = (id & PAGE_MASK) >>> 5;
+        int bit = 1 << (id & 31);
+        int bits = changed.get(word);
+        while ((bits & bit) == 0 && !changed.compareAndSet(word, bits, bits | bit)) {
+            bits = changed.get(word);
+        }
+    }
+
+    private boolean clearChangedBit(int id) {
+        AtomicIntegerArray changed = page(id).changed;
+        int word = (id & PAGE_MASK) >>> 5;
+        int bit = 1 << (id & 31);
+        int bits = changed.get(word);
+        while ((bits & bit) != 0) {
+            if (changed.compareAndSet(word, bits, bits & ~bit)) {
+                return true;
+            }
+            bits = changed.get(word);
+        }
+        return false;
+    }
+
+    @Override
+    public void setLastModified(Integer folder, long lastModified) {
+        setLastModified(folder.intValue(), lastModified);
+    }
+
+    @Override
+    public void setLastModified(int folder, long lastModified) {
+        page(folder).lastModified.set(folder & PAGE_MASK, lastModified);
+    }
+
+    @Override
+    public void removeFolder(Integer folder) {
+        removeFolder(folder.intValue());
+    }
+
+    // Appends only ever replace the first child, so they race with unlinking the first child alone.
+    // The size is read and marked in one step: an update from below that got there first is in what the
+    // ancestors lose, one that comes later stops at the mark, so the ancestors end up without either.
+    // The subtree's ids are freed by the next recycleRemoved().
+    @Override
+    public void removeFolder(int folder) {
+        int parent = parentOf(folder);
+        if (parent == NONE) {
+            throw new IllegalArgumentException("The root cannot be removed");
+        }
+        synchronized (removeLock) {
+            int next = nextSiblingOf(folder);
+            Page parentPage = page(parent);
+            if (!parentPage.firstChild.compareAndSet(parent & PAGE_MASK, folder, next)) {
+                for (int sibling = firstChildOf(parent); sibling != NONE; sibling = nextSiblingOf(sibling)) {
+                    if (nextSiblingOf(sibling) == folder) {
+                        page(sibling).nextSibling.set(sibling & PAGE_MASK, next);
+                        break;
+                    }
+                }
+            }
+            if (removedRootCount == removedRoots.length) {
+                removedRoots = Arrays.copyOf(removedRoots, Math.max(16, removedRootCount * 2));
+            }
+            removedRoots[removedRootCount++] = folder;
+        }
+        addSize(parent, -page(folder).size.getAndAdd(folder & PAGE_MASK, REMOVED));
+    }
+
+    // Only while no append, size update or removal is running: a removed folder's id may still be in the
+    // hands of a writer until then. Views of a removed folder held past this may show whichever folder
+    // takes its id next.
+    @Override
+    public void recycleRemoved() {
+        synchronized (removeLock) {
+            int[] subtree = new int[16];
+            for (int root = 0; root < removedRootCount; root++) {
+                int depth = 0;
+                subtree[depth++] = removedRoots[root];
+                while (depth > 0) {
+                    int id = subtree[--depth];
+                    if (freeIdCount == freeIds.length) {
+                        freeIds = Arrays.copyOf(freeIds, Math.max(PAGE_SIZE, freeIdCount * 2));
+                    }
+                    freeIds[freeIdCount++] = id;
+                    for (int child = firstChildOf(id); child != NONE; child = nextSiblingOf(child)) {
+                        if (depth == subtree.length) {
+                            subtree = Arrays.copyOf(subtree, depth * 2);
+                        }
+                        subtree[depth++] = child;
+                    }
+                }
+            }
+            removedRootCount = 0;
+        }
+    }
+
+    @Override
+    public Integer getFolder(String path) {
+        int id = find(path);
+        return id == NONE ? null : id;
+    }
+
+    @Override
+    public int getFolderId(String path) {
+        return find(path);
+    }
+
+    @Override
+    public FolderInfo getRootFolderInfo() {
+        return rootPath == null ? null : new Node(0);
+    }
+
+    @Override
+    public FolderInfo getFolderInfo(String path) {
+        int id = find(path);
+        return id == NONE ? null : new Node(id);
+    }
+
+    // Ids handed out so far, including those of removed folders that are not reused yet
+    int size() {
+        return nextId.get() - freeIdCount;
+    }
+
+    private int find(String path) {
+        String root = rootPath;
+        if (root == null) {
+            return NONE;
+        }
+        if (path.equals(root)) {
+            return 0;
+        }
+        int id = NONE;
+        int start = 0;
+        if (root.isEmpty()) {
+            // Several scanned roots, the first segment is a whole root path
+            for (int child = firstChildOf(0); child != NONE && id == NONE; child = nextSiblingOf(child)) {
+                String name = nameOf(child);
+                if (FolderInfo.isPathPrefix(name, path, separator)) {
+                    id = child;
+                    start = name.length();
+                }
+            }
+        } else if (FolderInfo.isPathPrefix(root, path, separator)) {
+            id = 0;
+            start = root.length();
+        }
+        while (id != NONE && start < path.length()) {
+            if (path.startsWith(separator, start)) {
+                start += separator.length();
+                continue;
+            }
+            int end = path.indexOf(separator, start);
+            if (end < 0) {
+                end = path.length();
+            }
+            Integer nameId = nameIds.get(path.substring(start, end));
+            if (nameId == null) {
+                return NONE;
+            }
+            id = findChild(id, nameId);
+            start = end;
+        }
+        return id;
+    }
+
+    private int findChild(int parent, int nameId) {
+        for (int child = firstChildOf(parent); child != NONE; child = nextSiblingOf(child)) {
+            if (page(child).name[child & PAGE_MASK] == nameId) {
+                return child;
+            }
+        }
+        return NONE;
+    }
+
+    private String pathOf(int id) {
+        if (id == 0) {
+            return rootPath;
+        }
+        int depth = 0;
+        int[] chain = new int[16];
+        for (int node = id; node != 0; node = parentOf(node)) {
+            if (depth == chain.length) {
+                chain = Arrays.copyOf(chain, depth * 2);
+            }
+            chain[depth++] = node;
+        }
+        StringBuilder path = new StringBuilder(rootPath);
+        for (int i = depth - 1; i >= 0; i--) {
+            FolderInfo.appendSegment(path, nameOf(chain[i]), separator);
+        }
+        return path.toString();
+    }
+
+    // Always reads the current outer array: a child id may live in a page added after our last look
+    private Page page(int id) {
+        return pages[id >>> PAGE_BITS];
+    }
+
+    private String nameOf(int id) {
+        int nameId = page(id).name[id & PAGE_MASK];
+        return names[nameId >>> PAGE_BITS][nameId & PAGE_MASK];
+    }
+
+    private int parentOf(int id) {
+        return page(id).parent[id & PAGE_MASK];
+    }
+
+    private int firstChildOf(int id) {
+        return page(id).firstChild.get(id & PAGE_MASK);
+    }
+
+    private int nextSiblingOf(int id) {
+        return page(id).nextSibling.get(id & PAGE_MASK);
+    }
+
+    private static class Page {
+        final int[] parent = new int[PAGE_SIZE];
+        final int[] name = new int[PAGE_SIZE];
+        // Atomic so a folder can be unlinked while readers walk its siblings
+        final AtomicIntegerArray nextSibling = new AtomicIntegerArray(PAGE_SIZE);
+        final AtomicIntegerArray firstChild = new AtomicIntegerArray(PAGE_SIZE);
+        final AtomicLongArray size = new AtomicLongArray(PAGE_SIZE);
+        final AtomicLongArray lastModified = new AtomicLongArray(PAGE_SIZE);
+        // One bit per folder: its size or subfolders changed since the consumer last looked
+        final AtomicIntegerArray changed = new AtomicIntegerArray(PAGE_SIZE / 32);
+    }
+
+    private class Node extends FolderInfo {
+        private final int id;
+
+        Node(int id) {
+            super(calculator);
+            this.id = id;
+        }
+
+        @Override
+        public String getPath() {
+            return pathOf(id);
+        }
+
+        @Override
+        public String getName() {
+            return nameOf(id);
+        }
+
+        @Override
+        public long getLastModified() {
+            return page(id).lastModified.get(id & PAGE_MASK);
+        }
+
+        @Override
+        public long getOwnSize() {
+            long ownSize = getSize();
+            for (int child = firstChildOf(id); child != NONE; child = nextSiblingOf(child)) {
+                ownSize -= sizeOf(child);
+            }
+            return ownSize;
+        }
+
+        @Override
+        public boolean pollChanged() {
+            return clearChangedBit(id);
+        }
+
+        @Override
+        public FolderInfo getParent() {
+            int parent = parentOf(id);
+            return parent == NONE ? null : new Node(parent);
+        }
+
+        @Override
+        public long getSize() {
+            return sizeOf(id);
+        }
+
+        @Override
+        public List<String> getSubfolderPaths() {
+            List<String> subfolderPaths = new ArrayList<>();
+            for (int child = firstChildOf(id); child != NONE; child = nextSiblingOf(child)) {
+                subfolderPaths.add(pathOf(child));
+            }
+            return subfolderPaths;
+        }
+
+        // Follows the sibling links, no name or path is looked at
+        @Override
+        public List<FolderInfo> getSubfolders() {
+            List<FolderInfo> subfolders = new ArrayList<>();
+            for (int child = firstChildOf(id); child != NONE; child = nextSiblingOf(child)) {
+                subfolders.add(new Node(child));
+            }
+            return subfolders;
+        }
+
+        // Views are created on demand, the same folder is the same id
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Node && ((Node) other).id == id && ((Node) other).store() == CompactFolderStore.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        private CompactFolderStore store() {
+            return CompactFolderStore.this;
+        }
+    }
+}
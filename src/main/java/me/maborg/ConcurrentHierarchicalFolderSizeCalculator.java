@@ -3,106 +3,978 @@
  ***************************************************/
 package me.maborg;
 
-import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class ConcurrentHierarchicalFolderSizeCalculator {
-    private final ConcurrentHashMap<String, FolderInfo> folderMap = new ConcurrentHashMap<>();
+    public static final long UNKNOWN_TIME = 0;
+
     private final ReentrantReadWriteLock rootLock = new ReentrantReadWriteLock();
-    private volatile String rootPath;
-    private AtomicBoolean stop = new AtomicBoolean(false);
+    private final int parallelism;
+    private final StoreType storeType;
+    private volatile FolderView<?> store;
+    private volatile Path snapshotFile;
+    private volatile boolean incremental;
+    private volatile boolean watchChanges;
+    private volatile FolderWatcher watcher;
+    private volatile ScanSession session;
+    // Of the last started scan; a loaded snapshot describes the default one
+    private volatile FileSystem scannedFileSystem = FileSystems.getDefault();
+    private volatile FolderFilter scannedFilter;
+    private volatile List<String> excludes = Collections.emptyList();
+    private volatile boolean oneFileSystem;
+    private volatile boolean followLinks;
+    private volatile int largestFiles = 100;
+    private volatile boolean extensionTotals;
+    private final ScanMetrics metrics = new ScanMetrics();
+    private ObjectName metricsName;
+    private volatile Runnable changeListener;
+    private volatile long changeIntervalNanos;
+    private final AtomicLong nextChangeNanos = new AtomicLong();
+    private volatile Scan<?> scan;
+    private volatile int generation;
+    // Shared by every root of every session, created on first use
+    private ForkJoinPool pool;
+
+    public enum StoreType {
+        // One FolderInfo object per folder in a ConcurrentHashMap keyed by path
+        OBJECTS,
+        // Primitive arrays indexed by folder id, a few dozen bytes per folder
+        COMPACT
+    }
+
+    // Sequential until a parallel scan has been measured faster on multi-core hardware; pass a parallelism to opt in
+    public ConcurrentHierarchicalFolderSizeCalculator() {
+        this(1);
+    }
 
-    public void startCalculation(String rootPath) {
-        stop.set(false);
-        this.rootPath = rootPath;
-        Thread calculationThread = new Thread(() -> calculateFolderSizes(rootPath));
-        calculationThread.start();
+    // parallelism == 1 keeps the single threaded depth-first walk
+    public ConcurrentHierarchicalFolderSizeCalculator(int parallelism) {
+        this(parallelism, StoreType.OBJECTS);
     }
 
-    private void calculateFolderSizes(String path) {
-        File rootFolder = new File(path);
-        if (!rootFolder.isDirectory()) {
-            throw new IllegalArgumentException("The provided path is not a directory");
+    public ConcurrentHierarchicalFolderSizeCalculator(int parallelism, StoreType storeType) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
         }
+        this.parallelism = parallelism;
+        this.storeType = storeType;
+        this.store = createStore();
+    }
 
-        calculateFolderInfo(rootFolder);
+    private FolderStore<?> createStore() {
+        switch (storeType) {
+            case COMPACT: return new CompactFolderStore(this);
+            default: return new FolderMapStore(this);
+        }
     }
 
-    private void calculateFolderInfo(File rootFolder) {
-        Deque<File> folderStack = new LinkedList<>();
-        folderStack.push(rootFolder);
+    public ScanSession startCalculation(String rootPath) {
+        return startCalculation(Collections.singletonList(rootPath));
+    }
 
-        while (!folderStack.isEmpty() && !stop.get()) {
-            File currentFolder = folderStack.pop();
-            long folderSize = 0;
-            ArrayList<String> subfolderPaths = new ArrayList<>();
+    public ScanSession startCalculation(List<String> rootPaths) {
+        return startCalculation(FileSystems.getDefault(), rootPaths);
+    }
 
-            File[] files = currentFolder.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isFile()) {
-                        folderSize += file.length();
-                    } else if (file.isDirectory()) {
-                        subfolderPaths.add(file.getAbsolutePath());
-                        folderStack.push(file);
+    // Any NIO file system: the root of a zip file system sizes an archive's contents without extracting it
+    public ScanSession startCalculation(Path rootPath) {
+        return startCalculation(rootPath.getFileSystem(), Collections.singletonList(rootPath.toString()));
+    }
+
+    // Cancels and joins the running session first; several roots are scanned concurrently
+    // on the same workers under a virtual root named ""
+    public synchronized ScanSession startCalculation(FileSystem fileSystem, List<String> rootPaths) {
+        if (rootPaths.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to scan");
+        }
+        // A malformed pattern fails here, before the running scan is cancelled
+        FolderFilter filter = new FolderFilter(fileSystem, excludes, oneFileSystem, followLinks);
+        stop();
+        List<Path> rootFolders = new ArrayList<>();
+        List<String> absoluteRootPaths = new ArrayList<>();
+        for (String rootPath : rootPaths) {
+            Path rootFolder = fileSystem.getPath(rootPath).toAbsolutePath();
+            rootFolders.add(rootFolder);
+            absoluteRootPaths.add(rootFolder.toString());
+        }
+        Set<String> requestedRoots = new HashSet<>(absoluteRootPaths);
+        FolderView<?> previous = store;
+        // A snapshot does not record its rules, it is trusted to match; the filter still prunes what it holds
+        FolderFilter previousFilter = scannedFilter;
+        boolean sameRoots = fileSystem == scannedFileSystem
+            && (previousFilter == null || previousFilter.sameRules(filter))
+            && scannedRoots(previous.getRootFolderInfo()).equals(requestedRoots);
+        // Snapshots only ever describe the default file system. One is only opened when the tree on screen
+        // holds other roots, and only replaces it when it holds the requested ones.
+        Path snapshot = fileSystem == FileSystems.getDefault() ? snapshotFile : null;
+        if (!sameRoots && snapshot != null && Files.exists(snapshot)) {
+            try {
+                SnapshotFolderStore opened = SnapshotFolderStore.open(this, snapshot);
+                if (scannedRoots(opened.getRootFolderInfo()).equals(requestedRoots)) {
+                    publish(opened);
+                    previous = opened;
+                    sameRoots = true;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        scannedFileSystem = fileSystem;
+        scannedFilter = filter;
+        // A previous result of the same roots stays on screen until the rescan has completed
+        boolean refresh = sameRoots && (incremental || previous instanceof SnapshotFolderStore);
+        FolderView<?> baseline = sameRoots && incremental ? previous : null;
+
+        FolderStore<?> newStore = createStore();
+        if (!refresh) {
+            publish(newStore);
+        }
+        FolderWatcher newWatcher = watchChanges ? openWatcher(rootFolders.get(0)) : null;
+        watcher = newWatcher;
+        ScanSession newSession = new ScanSession(absoluteRootPaths);
+        metrics.start(parallelism);
+        Scan<?> newScan = newScan(newStore, baseline, newWatcher, newSession, filter);
+        scan = newScan;
+        session = newSession;
+        pool().execute(() -> {
+            try {
+                newScan.run(rootFolders);
+                if (!newSession.isCancelled()) {
+                    if (refresh) {
+                        publish(newStore);
+                    }
+                    // Written before any event can change the tree; the events wait in the watcher meanwhile
+                    if (snapshot != null) {
+                        writeSnapshot(newStore);
+                    }
+                    if (newWatcher != null) {
+                        newWatcher.start(newScan::refresh);
                     }
                 }
+                metrics.finish();
+                treeChanged(true);
+                newSession.complete();
+            } catch (RuntimeException | Error e) {
+                metrics.finish();
+                treeChanged(true);
+                newSession.fail(e);
             }
+        });
+        return newSession;
+    }
 
-            String currentPath = currentFolder.getAbsolutePath();
-            FolderInfo folderInfo = new FolderInfo(this,currentPath, folderSize, subfolderPaths);
-            folderMap.put(currentPath, folderInfo);
+    private static Set<String> scannedRoots(FolderInfo root) {
+        if (root == null) {
+            return Collections.emptySet();
+        }
+        return root.getPath().isEmpty() ? new HashSet<>(root.getSubfolderPaths()) : Collections.singleton(root.getPath());
+    }
 
-            // Update parent folder size
-            File parentFile = currentFolder.getParentFile();
-            if (parentFile != null) {
-                String parentPath = parentFile.getAbsolutePath();
-                long finalFolderSize = folderSize;
-                folderMap.computeIfPresent(parentPath, (k, v) -> {
-                    v.addToSize(finalFolderSize);
-                    return v;
-                });
+    private void writeSnapshot(FolderView<?> completed) {
+        Path target = snapshotFile;
+        if (target != null) {
+            try {
+                SnapshotFolderStore.write(completed, target);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
     }
 
+    private synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("folder-scan-" + threadCount.incrementAndGet());
+                return thread;
+            }, null, false);
+        }
+        return pool;
+    }
+
+    private <N> Scan<N> newScan(FolderStore<N> store, FolderView<?> baseline, FolderWatcher watcher, ScanSession session,
+                                FolderFilter filter) {
+        return new Scan<>(store, baseline, watcher, session, filter);
+    }
+
+    private void publish(FolderView<?> newStore) {
+        rootLock.writeLock().lock();
+        try {
+            store = newStore;
+            generation++;
+        } finally {
+            rootLock.writeLock().unlock();
+        }
+        treeChanged(true);
+    }
+
+    // Whichever thread crosses the interval first signals, the others carry on
+    private void treeChanged(boolean always) {
+        Runnable listener = changeListener;
+        if (listener == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = nextChangeNanos.get();
+        if (always || now - next >= 0 && nextChangeNanos.compareAndSet(next, now + changeIntervalNanos)) {
+            listener.run();
+        }
+    }
+
+    private FolderWatcher openWatcher(Path rootFolder) {
+        try {
+            return new FolderWatcher(rootFolder.getFileSystem());
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Cannot watch " + rootFolder + ": " + e);
+            return null;
+        }
+    }
+
+    private void closeWatcher() {
+        FolderWatcher current = watcher;
+        if (current != null) {
+            current.close();
+            watcher = null;
+        }
+    }
+
+    // Completed scans are written here and reopened by the next startCalculation
+    public void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    // Rescans of the same root start from the previous result (or snapshot) and only list
+    // folders whose modification time changed; the others reuse their previous entries
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    // After a scan completes, keeps the tree up to date by listing only the folders the OS reports as changed
+    public void setWatchChanges(boolean watchChanges) {
+        this.watchChanges = watchChanges;
+    }
+
+    // Subfolders matching any pattern are neither listed nor shown. Patterns take the PathMatcher syntax
+    // ("glob:" when there is no prefix) and are tried on the whole path and on the folder name.
+    public void setExcludes(List<String> excludes) {
+        this.excludes = new ArrayList<>(excludes);
+    }
+
+    // Stays on the devices of the roots: mount points below them are left out
+    public void setOneFileSystem(boolean oneFileSystem) {
+        this.oneFileSystem = oneFileSystem;
+    }
+
+    // Off by default. When on, folders already reached another way are skipped, which also breaks link loops
+    public void setFollowLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+    }
+
+    // How many of the largest files the next scans keep, 0 for none
+    public void setLargestFiles(int largestFiles) {
+        if (largestFiles < 0) {
+            throw new IllegalArgumentException("The number of files cannot be negative");
+        }
+        this.largestFiles = largestFiles;
+    }
+
+    // Bytes and files per extension, off by default
+    public void setExtensionTotals(boolean extensionTotals) {
+        this.extensionTotals = extensionTotals;
+    }
+
+    // Largest files the current or last scan has listed so far, biggest first. Folders reused by an
+    // incremental scan are not listed, so their files are missing.
+    public List<LargeFile> getLargestFiles() {
+        Scan<?> current = scan;
+        return current == null ? Collections.emptyList() : current.getLargestFiles();
+    }
+
+    // Extension totals of the current or last scan so far, most bytes first
+    public List<ExtensionTotal> getExtensionTotals() {
+        Scan<?> current = scan;
+        return current == null ? Collections.emptyList() : current.getExtensionTotals();
+    }
+
+    // Serves the tree straight from the mapped snapshot until a scan replaces it
+    public void openSnapshot(Path file) throws IOException {
+        publish(SnapshotFolderStore.open(this, file));
+        scannedFileSystem = FileSystems.getDefault();
+        scannedFilter = null;
+    }
+
+    public void writeSnapshot(Path file) throws IOException {
+        SnapshotFolderStore.write(store, file);
+    }
+
+    // A persisted scan to compare against, such as yesterday's, mapped next to the current tree without replacing it
+    public FolderInfo loadSnapshot(Path file) throws IOException {
+        return SnapshotFolderStore.open(this, file).getRootFolderInfo();
+    }
+
+    // Lists a folder with one attribute read per entry (none at all on Windows, where the directory
+    // stream already carries the attributes) and returns the size of its own files
+    private long listFolder(Path folder, List<Subfolder> subfolders, FolderFilter filter, FileStats fileStats) {
+        long startNanos = System.nanoTime();
+        long folderSize = 0;
+        long fileCount = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    metrics.listingError();
+                    continue; // Vanished or unreadable entry
+                }
+                if (attributes.isSymbolicLink() && filter.followsLinks()) {
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue; // Dangling link
+                    }
+                }
+                if (attributes.isRegularFile()) {
+                    folderSize += attributes.size();
+                    fileCount++;
+                    if (fileStats != null) {
+                        fileStats.add(entry, attributes.size());
+                    }
+                } else if (attributes.isDirectory()) {
+                    if (filter.accept(entry, attributes)) {
+                        subfolders.add(new Subfolder(entry, attributes.lastModifiedTime().toMillis()));
+                    } else {
+                        metrics.excluded();
+                    }
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // Unreadable folder, keep whatever was listed so far
+            metrics.listingError();
+        }
+        metrics.listed(System.nanoTime() - startNanos, fileCount, folderSize);
+        return folderSize;
+    }
+
+    private static long lastModifiedOf(Path folder) {
+        try {
+            return Files.getLastModifiedTime(folder, LinkOption.NOFOLLOW_LINKS).toMillis();
+        } catch (IOException e) {
+            return UNKNOWN_TIME;
+        }
+    }
+
     public FolderInfo getRootFolderInfo() {
         rootLock.readLock().lock();
         try {
-            return folderMap.get(rootPath);
+            return store.getRootFolderInfo();
         } finally {
             rootLock.readLock().unlock();
         }
     }
 
+    // Bumped whenever a different tree is published; anything derived from an older tree must be rebuilt
+    public int getGeneration() {
+        return generation;
+    }
+
     public FolderInfo getFolderInfo(String path) {
-        return folderMap.get(path);
+        return store.getFolderInfo(path);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public StoreType getStoreType() {
+        return storeType;
     }
 
+    public ScanMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    // Called from a scan worker at most once per interval while scanning, and once when a scan ends
+    public void setProgressListener(Consumer<ScanMetricsMXBean> listener, long interval, TimeUnit unit) {
+        metrics.setProgressListener(listener, interval, unit);
+    }
+
+    // Tells a consumer that sizes or folders changed, so it can sleep instead of polling the root. Called from the
+    // changing thread at most once per interval while folders are listed, and whenever a new tree is published
+    // or a scan ends. Signals inside an interval are dropped, so a consumer woken by one should look again
+    // an interval later to see what changed meanwhile; null removes the listener.
+    public void setChangeListener(Runnable listener, long interval, TimeUnit unit) {
+        changeIntervalNanos = unit.toNanos(interval);
+        changeListener = listener;
+    }
+
+    // Publishes the metrics on the platform MBean server until shutdown()
+    public synchronized ObjectName registerMXBean() throws JMException {
+        if (metricsName == null) {
+            ObjectName name = new ObjectName("me.maborg:type=ScanMetrics,name=calculator-" + Integer.toHexString(hashCode()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        }
+        return metricsName;
+    }
+
+    // Focus hint, e.g. the folder under the cursor: its pending subtree is scanned before anything else
+    public void prioritize(String path) {
+        Scan<?> current = scan;
+        if (current != null && path != null) {
+            current.prioritize(path);
+        }
+    }
+
+    public ScanSession getSession() {
+        return session;
+    }
+
+    // Cancels the running session and waits until its workers have returned
     public void stop() {
-        stop.set(true);
+        closeWatcher();
+        ScanSession current = session;
+        if (current != null) {
+            current.cancel();
+            try {
+                current.awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
-    public static class FolderInfo {
-        private final ConcurrentHierarchicalFolderSizeCalculator calculator;
+    // Stops the scan and releases the worker threads; the calculator cannot scan afterwards
+    public synchronized void shutdown() {
+        stop();
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            metricsName = null;
+        }
+    }
+
+    // One run of the scanner into a single store
+    private class Scan<N> {
+        private final FolderStore<N> store;
+        // The same store when it gives out int ids
+        private final IntFolderStore ids;
+        private final FolderView<?> baseline;
+        private final FolderWatcher watcher;
+        private final ScanSession session;
+        private final FolderFilter filter;
+        private final int largestFileCount = largestFiles;
+        private final boolean extensionTotals = ConcurrentHierarchicalFolderSizeCalculator.this.extensionTotals;
+        // One per worker, read by getLargestFiles() and getExtensionTotals() at any time
+        private final List<FileStats> fileStats = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<FileStats> workerStats = ThreadLocal.withInitial(this::newFileStats);
+        private final ForkJoinPool pool = pool();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private volatile FocusLane<N> focusLane;
+
+        Scan(FolderStore<N> store, FolderView<?> baseline, FolderWatcher watcher, ScanSession session,
+             FolderFilter filter) {
+            this.store = store;
+            this.ids = store instanceof IntFolderStore ? (IntFolderStore) store : null;
+            this.baseline = baseline;
+            this.watcher = watcher;
+            this.session = session;
+            this.filter = filter;
+        }
+
+        // Runs on a pool worker; returns when every folder task has completed
+        void run(List<Path> rootFolders) {
+            for (Path rootFolder : rootFolders) {
+                if (!Files.isDirectory(rootFolder)) {
+                    throw new IllegalArgumentException("The provided path is not a directory: " + rootFolder);
+                }
+                filter.addRoot(rootFolder);
+            }
+            String separator = rootFolders.get(0).getFileSystem().getSeparator();
+            List<PendingFolder<N>> roots = new ArrayList<>();
+            if (rootFolders.size() == 1) {
+                Path rootFolder = rootFolders.get(0);
+                roots.add(addRoot(rootFolder, rootPath(rootFolder), separator,
+                    lastModifiedOf(rootFolder), baseline == null ? null : baseline.getRootFolderInfo()));
+            } else {
+                PendingFolder<N> virtualRoot = addRoot(null, "", separator, UNKNOWN_TIME, null);
+                for (Path rootFolder : rootFolders) {
+                    String rootPath = rootPath(rootFolder);
+                    roots.add(addFolder(virtualRoot, rootFolder, rootPath,
+                        lastModifiedOf(rootFolder), baseline == null ? null : baseline.getFolderInfo(rootPath)));
+                }
+            }
+            FocusLane<N> lane = new FocusLane<>(separator);
+            FolderTask<N> scanTask = new FolderTask<>(this, lane, roots, true);
+            lane.setRoot(scanTask);
+            focusLane = lane;
+            // The calling worker helps with the folder tasks until they have all completed
+            scanTask.invoke();
+            rethrowFailure();
+        }
+
+        // A folder task that throws stops the others from visiting anything more, and the scan fails
+        // once they have all returned
+        void fail(Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+
+        boolean isStopped() {
+            return session.isCancelled() || failure.get() != null;
+        }
+
+        void queued(int folders) {
+            metrics.foldersQueued(folders);
+        }
+
+        // For the folder task that claimed the folder; once the scan is stopped folders are no longer visited
+        void visitTask(PendingFolder<N> folder, List<PendingFolder<N>> subfolders, boolean countFiles) {
+            metrics.folderStarted();
+            try {
+                if (!isStopped()) {
+                    visit(folder, subfolders, countFiles ? workerStats.get() : null);
+                }
+            } catch (RuntimeException | Error e) {
+                fail(e);
+                subfolders.clear();
+            } finally {
+                metrics.folderFinished();
+            }
+        }
+
+        private void rethrowFailure() {
+            rethrow(failure.get());
+        }
+
+        private void rethrow(Throwable e) {
+            if (e instanceof Error) {
+                throw (Error) e;
+            } else if (e != null) {
+                throw (RuntimeException) e;
+            }
+        }
+
+        private FileStats newFileStats() {
+            if (largestFileCount == 0 && !extensionTotals) {
+                return null;
+            }
+            FileStats workerStats = new FileStats(largestFileCount, extensionTotals);
+            fileStats.add(workerStats);
+            return workerStats;
+        }
+
+        List<LargeFile> getLargestFiles() {
+            List<LargeFile> files = new ArrayList<>();
+            for (FileStats workerStats : fileStats) {
+                workerStats.copyLargestFiles(files);
+            }
+            files.sort(Comparator.comparingLong(LargeFile::getSize).reversed());
+            return files.size() > largestFileCount ? new ArrayList<>(files.subList(0, largestFileCount)) : files;
+        }
+
+        List<ExtensionTotal> getExtensionTotals() {
+            Map<String, long[]> totals = new HashMap<>();
+            for (FileStats workerStats : fileStats) {
+                workerStats.addExtensionTotals(totals);
+            }
+            List<ExtensionTotal> extensions = new ArrayList<>(totals.size());
+            for (Map.Entry<String, long[]> total : totals.entrySet()) {
+                extensions.add(new ExtensionTotal(total.getKey(), total.getValue()[0], total.getValue()[1]));
+            }
+            extensions.sort(Comparator.comparingLong(ExtensionTotal::getBytes).reversed());
+            return extensions;
+        }
+
+        void prioritize(String path) {
+            FocusLane<N> lane = focusLane;
+            if (lane != null) {
+                lane.prioritize(path);
+            }
+        }
+
+        private String rootPath(Path rootFolder) {
+            return rootFolder.toString();
+        }
+
+        // Adds the folder's own files and registers its subfolders, which are returned still to visit
+        void visit(PendingFolder<N> pending, List<PendingFolder<N>> next, FileStats workerStats) {
+            List<Subfolder> subfolders = new ArrayList<>();
+            long folderSize;
+            FolderInfo previous = pending.baseline;
+            // Children are paired with their previous entries by name, never by resolving their paths in the baseline
+            Map<String, FolderInfo> previousByName = null;
+            if (previous != null && pending.lastModified != UNKNOWN_TIME && previous.getLastModified() == pending.lastModified) {
+                // Same entries as last time: reuse them instead of listing, the subfolders are still checked
+                folderSize = previous.getOwnSize();
+                metrics.reused(folderSize);
+                for (FolderInfo previousSubfolder : previous.getSubfolders()) {
+                    Path subfolder = pending.path.resolve(previousSubfolder.getName());
+                    if (filter.accept(subfolder, null)) {
+                        subfolders.add(new Subfolder(subfolder, UNKNOWN_TIME, previousSubfolder));
+                    } else {
+                        metrics.excluded();
+                    }
+                }
+            } else {
+                folderSize = listFolder(pending.path, subfolders, filter, workerStats);
+                if (previous != null) {
+                    List<FolderInfo> previousSubfolders = previous.getSubfolders();
+                    previousByName = new HashMap<>(previousSubfolders.size() * 2);
+                    for (FolderInfo previousSubfolder : previousSubfolders) {
+                        previousByName.put(previousSubfolder.getName(), previousSubfolder);
+                    }
+                }
+            }
+
+            // Roll the bytes up to every ancestor, so the root always holds the running total
+            addSize(pending, folderSize);
+            setLastModified(pending, pending.lastModified);
+            if (watcher != null) {
+                watcher.register(pending.path);
+            }
+
+            for (Subfolder subfolder : subfolders) {
+                String name = subfolder.path.getFileName().toString();
+                long lastModified = subfolder.lastModified != UNKNOWN_TIME ? subfolder.lastModified : lastModifiedOf(subfolder.path);
+                FolderInfo childBaseline = previousByName == null ? subfolder.baseline : previousByName.get(name);
+                next.add(addFolder(pending, subfolder.path, name, lastModified, childBaseline));
+            }
+            treeChanged(false);
+        }
+
+        // Lists a folder reported as changed again and applies the differences to the published tree
+        void refresh(Path folderPath) {
+            String path = folderPath.toString();
+            PendingFolder<N> folder = find(folderPath);
+            FolderInfo folderInfo = store.getFolderInfo(path);
+            if (folder == null || folderInfo == null) {
+                return; // Not scanned or already removed with its parent
+            }
+            List<Subfolder> subfolders = new ArrayList<>();
+            // Not counted again in the file statistics, which keep describing the scan
+            long folderSize = listFolder(folderPath, subfolders, filter, null);
+            addSize(folder, folderSize - folderInfo.getOwnSize());
+            setLastModified(folder, lastModifiedOf(folderPath));
+
+            Set<String> removed = new HashSet<>(folderInfo.getSubfolderPaths());
+            for (Subfolder subfolder : subfolders) {
+                String subfolderPath = subfolder.path.toString();
+                if (!removed.remove(subfolderPath)) {
+                    List<PendingFolder<N>> newFolder = Collections.singletonList(
+                        addFolder(folder, subfolder.path, subfolder.path.getFileName().toString(), subfolder.lastModified, null));
+                    FolderTask<N> newFolderTask = new FolderTask<>(this, new FocusLane<>(store.getSeparator()), newFolder, false);
+                    pool.invoke(newFolderTask);
+                    // Cleared, so a failed refresh does not stop the ones after it
+                    rethrow(failure.getAndSet(null));
+                }
+            }
+            for (String subfolderPath : removed) {
+                PendingFolder<N> child = find(folderPath.getFileSystem().getPath(subfolderPath));
+                if (child != null) {
+                    removeFolder(child);
+                }
+            }
+            // Refreshes run one at a time once the scan is done, nothing else writes to the store here
+            if (ids != null && !removed.isEmpty()) {
+                ids.recycleRemoved();
+            }
+            treeChanged(false);
+        }
+
+        // The store is called with int ids when it has them, so registering a folder boxes nothing
+        private PendingFolder<N> addRoot(Path path, String rootPath, String separator, long lastModified, FolderInfo baseline) {
+            return ids != null
+                ? new PendingFolder<>(path, null, ids.addRootId(rootPath, separator), lastModified, baseline)
+                : new PendingFolder<>(path, store.addRoot(rootPath, separator), IntFolderStore.NONE, lastModified, baseline);
+        }
+
+        private PendingFolder<N> addFolder(PendingFolder<N> parent, Path path, String name, long lastModified,
+                                           FolderInfo baseline) {
+            return ids != null
+                ? new PendingFolder<>(path, null, ids.addFolderId(parent.id, path.toString(), name), lastModified, baseline)
+                : new PendingFolder<>(path, store.addFolder(parent.folder, path.toString(), name), IntFolderStore.NONE,
+                    lastModified, baseline);
+        }
+
+        // A folder already in the store, null if it is not
+        private PendingFolder<N> find(Path path) {
+            if (ids != null) {
+                int id = ids.getFolderId(path.toString());
+                return id == IntFolderStore.NONE ? null : new PendingFolder<>(path, null, id, UNKNOWN_TIME, null);
+            }
+            N folder = store.getFolder(path.toString());
+            return folder == null ? null : new PendingFolder<>(path, folder, IntFolderStore.NONE, UNKNOWN_TIME, null);
+        }
+
+        private void addSize(PendingFolder<N> folder, long delta) {
+            if (ids != null) {
+                ids.addSize(folder.id, delta);
+            } else {
+                store.addSize(folder.folder, delta);
+            }
+        }
+
+        private void setLastModified(PendingFolder<N> folder, long lastModified) {
+            if (ids != null) {
+                ids.setLastModified(folder.id, lastModified);
+            } else {
+                store.setLastModified(folder.folder, lastModified);
+            }
+        }
+
+        private void removeFolder(PendingFolder<N> folder) {
+            if (ids != null) {
+                ids.removeFolder(folder.id);
+            } else {
+                store.removeFolder(folder.folder);
+            }
+        }
+    }
+
+    // One task per folder, forked onto the owning worker's deque so the scan stays depth first there while idle
+    // workers steal the oldest, biggest subtrees from the others. The task completes once its subtree has.
+    // Folders inside the focus are also offered on the focus lane; whichever copy is claimed first visits the folder.
+    private static class FolderTask<N> extends CountedCompleter<Void> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<FolderTask> CLAIMED =
+            AtomicIntegerFieldUpdater.newUpdater(FolderTask.class, "claimed");
+
+        private final Scan<N> scan;
+        private final FocusLane<N> lane;
+        // Null for the task that forks the scanned roots
+        private final PendingFolder<N> folder;
+        private final List<PendingFolder<N>> roots;
+        // Refreshes are not counted in the file statistics, which keep describing the scan
+        private final boolean countFiles;
+        private volatile int claimed;
+        // Forked subfolders, for a new focus to find the folders still pending
+        private volatile List<FolderTask<N>> subfolderTasks;
+
+        // Visits the roots and everything below them
+        FolderTask(Scan<N> scan, FocusLane<N> lane, List<PendingFolder<N>> roots, boolean countFiles) {
+            this.scan = scan;
+            this.lane = lane;
+            this.folder = null;
+            this.roots = roots;
+            this.countFiles = countFiles;
+        }
+
+        private FolderTask(FolderTask<N> parent, PendingFolder<N> folder) {
+            super(parent);
+            this.scan = parent.scan;
+            this.lane = parent.lane;
+            this.folder = folder;
+            this.roots = null;
+            this.countFiles = parent.countFiles;
+        }
+
+        @Override
+        public void compute() {
+            lane.serve();
+            if (claim()) {
+                visitClaimed();
+            }
+        }
+
+        boolean claim() {
+            return CLAIMED.compareAndSet(this, 0, 1);
+        }
+
+        boolean isClaimed() {
+            return claimed != 0;
+        }
+
+        PendingFolder<N> getFolder() {
+            return folder;
+        }
+
+        List<FolderTask<N>> getSubfolderTasks() {
+            return subfolderTasks;
+        }
+
+        // Only by the worker that claimed the task
+        void visitClaimed() {
+            List<PendingFolder<N>> subfolders = roots;
+            if (folder != null) {
+                subfolders = new ArrayList<>();
+                scan.visitTask(folder, subfolders, countFiles);
+            }
+            List<FolderTask<N>> tasks = new ArrayList<>(subfolders.size());
+            for (PendingFolder<N> subfolder : subfolders) {
+                tasks.add(new FolderTask<>(this, subfolder));
+            }
+            subfolderTasks = tasks;
+            scan.queued(tasks.size());
+            addToPendingCount(tasks.size());
+            for (FolderTask<N> task : tasks) {
+                lane.offer(task);
+                task.fork();
+            }
+            tryComplete();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            subfolderTasks = null;
+        }
+    }
+
+    // Folder tasks inside the focus, or on the way to it, which every folder task serves before its own folder.
+    // Only ever holds the folders of the focused subtree, so it stays small next to the workers' deques.
+    private static class FocusLane<N> {
+        private final String separator;
+        private final ConcurrentLinkedDeque<FolderTask<N>> focused = new ConcurrentLinkedDeque<>();
+        private volatile FolderTask<N> root;
+        private volatile String focus;
+
+        FocusLane(String separator) {
+            this.separator = separator;
+        }
+
+        void setRoot(FolderTask<N> root) {
+            this.root = root;
+        }
+
+        // Newest first, like the workers' own deques, so the focused subtree is also visited depth first
+        void offer(FolderTask<N> task) {
+            if (isFocused(task.getFolder())) {
+                focused.addFirst(task);
+            }
+        }
+
+        // Visits focused folders until the lane is empty; copies already claimed from a deque are dropped
+        void serve() {
+            if (focused.isEmpty()) {
+                return;
+            }
+            for (FolderTask<N> task = focused.pollFirst(); task != null; task = focused.pollFirst()) {
+                if (task.claim()) {
+                    task.visitClaimed();
+                }
+            }
+        }
+
+        // Offers the topmost pending folders inside the new focus, or on the way to it. A folder being visited
+        // meanwhile reads the new focus before it forks its subfolders.
+        void prioritize(String path) {
+            if (path.equals(focus)) {
+                return;
+            }
+            focus = path;
+            // Left from the previous focus; those folders are still queued on the workers' deques
+            focused.clear();
+            ArrayDeque<FolderTask<N>> tasks = new ArrayDeque<>();
+            FolderTask<N> scanTask = root;
+            if (scanTask != null) {
+                tasks.push(scanTask);
+            }
+            while (!tasks.isEmpty()) {
+                FolderTask<N> task = tasks.pop();
+                if (task.isDone() || task.getFolder() != null && !isFocused(task.getFolder())) {
+                    continue;
+                }
+                if (!task.isClaimed()) {
+                    focused.addLast(task);
+                    continue;
+                }
+                List<FolderTask<N>> subfolderTasks = task.getSubfolderTasks();
+                if (subfolderTasks != null) {
+                    subfolderTasks.forEach(tasks::push);
+                }
+            }
+        }
+
+        private boolean isFocused(PendingFolder<N> folder) {
+            String currentFocus = focus;
+            if (currentFocus == null) {
+                return false;
+            }
+            String path = folder.path.toString();
+            return FolderInfo.isPathPrefix(currentFocus, path, separator) || FolderInfo.isPathPrefix(path, currentFocus, separator);
+        }
+    }
+
+    private static class PendingFolder<N> {
+        final Path path;
+        // The store's handle, or null when the store gives out int ids and id holds it instead
+        final N folder;
+        final int id;
+        final long lastModified;
+        // Same folder in the previous result, for incremental scans
+        final FolderInfo baseline;
+
+        PendingFolder(Path path, N folder, int id, long lastModified, FolderInfo baseline) {
+            this.path = path;
+            this.folder = folder;
+            this.id = id;
+            this.lastModified = lastModified;
+            this.baseline = baseline;
+        }
+    }
+
+    private static class Subfolder {
+        final Path path;
+        final long lastModified;
+        // Same folder in the previous result when it was reused from there
+        final FolderInfo baseline;
+
+        Subfolder(Path path, long lastModified) {
+            this(path, lastModified, null);
+        }
+
+        Subfolder(Path path, long lastModified, FolderInfo baseline) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.baseline = baseline;
+        }
+    }
+
+    public static class LargeFile {
         private final String path;
-        private final AtomicLong size;
-        private final List<String> subfolderPaths;
-        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final long size;
 
-        public FolderInfo(ConcurrentHierarchicalFolderSizeCalculator calculator,
-            String path, long size, List<String> subfolderPaths) {
-            this.calculator = calculator;
+        LargeFile(String path, long size) {
             this.path = path;
-            this.size = new AtomicLong(size);
-            this.subfolderPaths = subfolderPaths;
+            this.size = size;
         }
 
         public String getPath() {
@@ -110,29 +982,115 @@ public class ConcurrentHierarchicalFolderSizeCalculator {
         }
 
         public long getSize() {
-            return size.get();
+            return size;
         }
+    }
+
+    public static class ExtensionTotal {
+        // Lower case without the dot; "" for names without one
+        private final String extension;
+        private final long bytes;
+        private final long files;
 
-        public void addToSize(long delta) {
-            size.addAndGet(delta);
+        ExtensionTotal(String extension, long bytes, long files) {
+            this.extension = extension;
+            this.bytes = bytes;
+            this.files = files;
         }
 
-        public List<String> getSubfolderPaths() {
-            lock.readLock().lock();
-            try {
-                return new ArrayList<>(subfolderPaths);
-            } finally {
-                lock.readLock().unlock();
+        public String getExtension() {
+            return extension;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+    }
+
+    // Read side of a folder, backed by whichever FolderStore the calculator uses
+    public abstract static class FolderInfo {
+        private final ConcurrentHierarchicalFolderSizeCalculator calculator;
+
+        protected FolderInfo(ConcurrentHierarchicalFolderSizeCalculator calculator) {
+            this.calculator = calculator;
+        }
+
+        public abstract String getPath();
+
+        // Last path segment; the root's name is its full path
+        public abstract String getName();
+
+        public abstract FolderInfo getParent();
+
+        // Own files plus everything scanned so far below this folder
+        public abstract long getSize();
+
+        // Milliseconds since the epoch, UNKNOWN_TIME if it was never read
+        public abstract long getLastModified();
+
+        public abstract List<String> getSubfolderPaths();
+
+        // The subfolders themselves, reached without resolving a path. The list is a snapshot: folders added
+        // later do not show up in it, and it must not be modified.
+        public abstract List<FolderInfo> getSubfolders();
+
+        // Clears and returns the flag set whenever the size or the subfolders of this folder, or of any folder
+        // below it, change. Meant for a single consumer (the visualizer); an immutable tree never changes.
+        public boolean pollChanged() {
+            return false;
+        }
+
+        // Size of the files directly inside this folder
+        public long getOwnSize() {
+            long size = getSize();
+            for (FolderInfo subfolder : getSubfolders()) {
+                size -= subfolder.getSize();
             }
+            return size;
+        }
+
+        // Sum of the subfolders' sizes, without visiting them where the store keeps it
+        public long getSubfoldersSize() {
+            return getSize() - getOwnSize();
         }
 
         @Override
         public String toString() {
-            return "Path: " + path + ", Size: " + size.get() + " bytes, Subfolders: " + subfolderPaths.size();
+            return "Path: " + getPath() + ", Size: " + getSize() + " bytes, Subfolders: " + getSubfolders().size();
         }
 
         public ConcurrentHierarchicalFolderSizeCalculator getCalculator() {
             return calculator;
         }
+
+        // Joins a name onto a path; the empty path of a virtual root takes the name as is
+        static void appendSegment(StringBuilder path, String name, String separator) {
+            if (path.length() > 0 && path.charAt(path.length() - 1) != separator.charAt(0)) {
+                path.append(separator);
+            }
+            path.append(name);
+        }
+
+        // True when path is prefix itself or lies below it
+        static boolean isPathPrefix(String prefix, String path, String separator) {
+            return path.startsWith(prefix) && (path.length() == prefix.length()
+                || prefix.endsWith(separator) || path.startsWith(separator, prefix.length()));
+        }
+
+        // The name of path below parentPath; below a virtual root it is the whole root path
+        static String childName(String parentPath, String path) {
+            if (parentPath.isEmpty()) {
+                return path;
+            }
+            int start = parentPath.length();
+            while (start < path.length() && (path.charAt(start) == '/' || path.charAt(start) == '\\')) {
+                start++;
+            }
+            return path.substring(start);
+        }
     }
 }
@@ -0,0 +1,175 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// One scan worker's largest files and per extension totals, in primitive arrays. Only its worker adds
+// to it; a reader merging all workers' on demand takes the same monitor, which the worker otherwise
+// always finds free.
+class FileStats {
+    private static final int MAX_EXTENSIONS = 1024;
+    private static final int MAX_EXTENSION_LENGTH = 16;
+    // Where extensions go once a worker has seen too many distinct ones
+    static final String OTHER_EXTENSIONS = "*";
+
+    private final int largestFiles;
+    private final boolean extensions;
+    // Min-heap on size, so the smallest of the kept files is the one to beat
+    private final long[] sizes;
+    private final String[] paths;
+    private int count;
+    // Open addressing, keys lower case without the dot, "" for names without one
+    private String[] extensionKeys = new String[64];
+    private long[] extensionBytes = new long[64];
+    private long[] extensionFiles = new long[64];
+    private int extensionCount;
+
+    FileStats(int largestFiles, boolean extensions) {
+        this.largestFiles = largestFiles;
+        this.extensions = extensions;
+        sizes = new long[largestFiles];
+        paths = new String[largestFiles];
+    }
+
+    synchronized void add(Path file, long size) {
+        if (count < largestFiles) {
+            sizes[count] = size;
+            paths[count] = file.toString();
+            siftUp(count++);
+        } else if (largestFiles > 0 && size > sizes[0]) {
+            // Only a file that makes it in costs a path string
+            sizes[0] = size;
+            paths[0] = file.toString();
+            siftDown(0);
+        }
+        if (extensions) {
+            addExtension(file.getFileName().toString(), size);
+        }
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (sizes[parent] <= sizes[index]) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            if (left < count && sizes[left] < sizes[smallest]) {
+                smallest = left;
+            }
+            if (left + 1 < count && sizes[left + 1] < sizes[smallest]) {
+                smallest = left + 1;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long size = sizes[i];
+        sizes[i] = sizes[j];
+        sizes[j] = size;
+        String path = paths[i];
+        paths[i] = paths[j];
+        paths[j] = path;
+    }
+
+    private void addExtension(String name, long size) {
+        int dot = name.lastIndexOf('.');
+        // Dot files have no extension, and long tails are rather part of the name
+        int start = dot <= 0 || name.length() - dot - 1 > MAX_EXTENSION_LENGTH ? name.length() : dot + 1;
+        if (!addExtension(name, start, size, extensionCount < MAX_EXTENSIONS)) {
+            addExtension(OTHER_EXTENSIONS, 0, size, true);
+        }
+    }
+
+    // Adds to the extension name[start..], comparing without allocating. Returns false when it is
+    // new and may not be inserted.
+    private boolean addExtension(String name, int start, long size, boolean insert) {
+        int length = name.length() - start;
+        int hash = 0;
+        for (int i = start; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(name.charAt(i));
+        }
+        int mask = extensionKeys.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        for (String key = extensionKeys[slot]; key != null; key = extensionKeys[slot]) {
+            if (key.length() == length && key.regionMatches(true, 0, name, start, length)) {
+                extensionBytes[slot] += size;
+                extensionFiles[slot]++;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!insert) {
+            return false;
+        }
+        char[] key = new char[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = Character.toLowerCase(name.charAt(start + i));
+        }
+        extensionKeys[slot] = new String(key);
+        extensionBytes[slot] = size;
+        extensionFiles[slot] = 1;
+        if (++extensionCount * 2 > extensionKeys.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash() {
+        String[] keys = extensionKeys;
+        long[] bytes = extensionBytes;
+        long[] files = extensionFiles;
+        extensionKeys = new String[keys.length * 2];
+        extensionBytes = new long[keys.length * 2];
+        extensionFiles = new long[keys.length * 2];
+        int mask = extensionKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) {
+                continue;
+            }
+            int hash = keys[i].hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (extensionKeys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            extensionKeys[slot] = keys[i];
+            extensionBytes[slot] = bytes[i];
+            extensionFiles[slot] = files[i];
+        }
+    }
+
+    // Merging is left to the caller, which sees every worker's
+    synchronized void copyLargestFiles(List<ConcurrentHierarchicalFolderSizeCalculator.LargeFile> into) {
+        for (int i = 0; i < count; i++) {
+            into.add(new ConcurrentHierarchicalFolderSizeCalculator.LargeFile(paths[i], sizes[i]));
+        }
+    }
+
+    // Sums into extension -> {bytes, files}
+    synchronized void addExtensionTotals(Map<String, long[]> into) {
+        for (int i = 0; i < extensionKeys.length; i++) {
+            if (extensionKeys[i] != null) {
+                long[] total = into.computeIfAbsent(extensionKeys[i], key -> new long[2]);
+                total[0] += extensionBytes[i];
+                total[1] += extensionFiles[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Decides whether a subfolder is scanned, before it is listed, so a pruned subtree costs no I/O at all.
+// Compiled once per scan for the file system being scanned; shared by all its workers.
+class FolderFilter {
+    private static final LinkOption[] NO_FOLLOW = {LinkOption.NOFOLLOW_LINKS};
+    private static final LinkOption[] FOLLOW = {};
+
+    private final List<String> excludes;
+    private final boolean oneFileSystem;
+    private final boolean followLinks;
+    private final List<PathMatcher> matchers = new ArrayList<>();
+    // Device numbers where the file system exposes them, otherwise the stores themselves
+    private final boolean unixDevices;
+    private final Set<Object> rootDevices = ConcurrentHashMap.newKeySet();
+    // Only kept while following links, the one way a walk can come back to a folder it has seen
+    private final Set<Object> visited = ConcurrentHashMap.newKeySet();
+
+    // Patterns take the PathMatcher syntax, "glob:" is assumed without a prefix. Each is tried on the
+    // whole path and on the folder name, so "node_modules", "/proc" and "regex:.*\.cache" all work.
+    FolderFilter(FileSystem fileSystem, List<String> excludes, boolean oneFileSystem, boolean followLinks) {
+        this.excludes = new ArrayList<>(excludes);
+        this.oneFileSystem = oneFileSystem;
+        this.followLinks = followLinks;
+        for (String exclude : excludes) {
+            boolean hasSyntax = exclude.startsWith("glob:") || exclude.startsWith("regex:");
+            matchers.add(fileSystem.getPathMatcher(hasSyntax ? exclude : "glob:" + exclude));
+        }
+        unixDevices = fileSystem.supportedFileAttributeViews().contains("unix");
+    }
+
+    boolean followsLinks() {
+        return followLinks;
+    }
+
+    // Same rules, so a result scanned with one can stand in for the other
+    boolean sameRules(FolderFilter other) {
+        return excludes.equals(other.excludes) && oneFileSystem == other.oneFileSystem && followLinks == other.followLinks;
+    }
+
+    // Roots are always scanned, they set the devices that one file system mode stays on
+    void addRoot(Path root) {
+        try {
+            if (oneFileSystem) {
+                rootDevices.add(deviceOf(root, FOLLOW));
+            }
+            if (followLinks) {
+                visited.add(keyOf(root, Files.readAttributes(root, BasicFileAttributes.class)));
+            }
+        } catch (IOException e) {
+            // Unreadable root, the listing reports it
+        }
+    }
+
+    // attributes are the folder's own, or its target's when it was reached through a followed link;
+    // null when the caller has none, and they are read only if a rule needs them
+    boolean accept(Path folder, BasicFileAttributes attributes) {
+        for (PathMatcher matcher : matchers) {
+            Path name = folder.getFileName();
+            if (matcher.matches(folder) || (name != null && matcher.matches(name))) {
+                return false;
+            }
+        }
+        if (!oneFileSystem && !followLinks) {
+            return true;
+        }
+        LinkOption[] options = followLinks ? FOLLOW : NO_FOLLOW;
+        try {
+            if (oneFileSystem && !rootDevices.contains(deviceOf(folder, options))) {
+                return false;
+            }
+            if (followLinks) {
+                if (attributes == null) {
+                    attributes = Files.readAttributes(folder, BasicFileAttributes.class, options);
+                }
+                return visited.add(keyOf(folder, attributes));
+            }
+        } catch (IOException e) {
+            return false; // Vanished or unreadable, there is nothing to list either
+        }
+        return true;
+    }
+
+    private Object deviceOf(Path folder, LinkOption[] options) throws IOException {
+        if (unixDevices) {
+            return Files.getAttribute(folder, "unix:dev", options);
+        }
+        return Files.getFileStore(folder);
+    }
+
+    // Inode and device where the file system has them, the link free path otherwise
+    private static Object keyOf(Path folder, BasicFileAttributes attributes) throws IOException {
+        Object key = attributes.fileKey();
+        return key != null ? key : folder.toRealPath().toString();
+    }
+}
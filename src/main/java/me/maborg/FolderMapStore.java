@@ -0,0 +1,248 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static me.maborg.ConcurrentHierarchicalFolderSizeCalculator.FolderInfo;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// One FolderInfo object per folder, keyed by absolute path
+class FolderMapStore implements FolderStore<FolderMapStore.FolderNode> {
+    private final ConcurrentHierarchicalFolderSizeCalculator calculator;
+    private final ConcurrentHashMap<String, FolderNode> folderMap = new ConcurrentHashMap<>();
+    private volatile FolderNode root;
+    private volatile String separator;
+
+    FolderMapStore(ConcurrentHierarchicalFolderSizeCalculator calculator) {
+        this.calculator = calculator;
+    }
+
+    @Override
+    public FolderNode addRoot(String path, String separator) {
+        this.separator = separator;
+        FolderNode node = new FolderNode(null, path);
+        folderMap.put(path, node);
+        root = node;
+        return node;
+    }
+
+    @Override
+    public String getSeparator() {
+        return separator;
+    }
+
+    @Override
+    public FolderNode addFolder(FolderNode parent, String path, String name) {
+        FolderNode node = new FolderNode(parent, path);
+        folderMap.put(path, node);
+        parent.addSubfolder(node);
+        parent.markChanged();
+        return node;
+    }
+
+    @Override
+    public void addSize(FolderNode folder, long delta) {
+        folder.addToSize(delta);
+        // After the total, so a reader sees the subfolders' share too large for a moment rather than negative
+        folder.ownSize.addAndGet(delta);
+    }
+
+    @Override
+    public void setLastModified(FolderNode folder, long lastModified) {
+        folder.lastModified = lastModified;
+    }
+
+    @Override
+    public void removeFolder(FolderNode folder) {
+        if (folder.parent == null) {
+            throw new IllegalArgumentException("The root cannot be removed");
+        }
+        folder.parent.removeSubfolder(folder);
+        folder.parent.addToSize(-folder.getSize());
+        // Forget the whole subtree; paths still pending on a reader just resolve to null
+        List<FolderNode> pending = new ArrayList<>();
+        pending.add(folder);
+        while (!pending.isEmpty()) {
+            FolderNode node = pending.remove(pending.size() - 1);
+            folderMap.remove(node.path, node);
+            Subfolders subfolders = node.subfolders;
+            for (int i = 0; i < subfolders.size(); i++) {
+                pending.add(subfolders.get(i));
+            }
+        }
+    }
+
+    @Override
+    public FolderNode getFolder(String path) {
+        return folderMap.get(path);
+    }
+
+    @Override
+    public FolderInfo getRootFolderInfo() {
+        return root;
+    }
+
+    @Override
+    public FolderInfo getFolderInfo(String path) {
+        return folderMap.get(path);
+    }
+
+    class FolderNode extends FolderInfo {
+        private final FolderNode parent;
+        private final String path;
+        // Striped: every folder in the tree adds into the root and its upper levels
+        private final LongAdder size = new LongAdder();
+        // Written by the one worker listing this folder, read with the total for the subfolders' share
+        private final AtomicLong ownSize = new AtomicLong();
+        // Replaced, never changed in place: readers get the current one without locking or copying
+        private volatile Subfolders subfolders = Subfolders.EMPTY;
+        private volatile long lastModified;
+        private volatile boolean changed = true;
+
+        FolderNode(FolderNode parent, String path) {
+            super(calculator);
+            this.parent = parent;
+            this.path = path;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getName() {
+            return parent == null ? path : childName(parent.path, path);
+        }
+
+        @Override
+        public FolderInfo getParent() {
+            return parent;
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public long getOwnSize() {
+            return ownSize.get();
+        }
+
+        @Override
+        public long getSubfoldersSize() {
+            return getSize() - ownSize.get();
+        }
+
+        @Override
+        public long getSize() {
+            return size.sum();
+        }
+
+        // Adds to this folder and all of its ancestors, without locking
+        void addToSize(long delta) {
+            for (FolderNode folder = this; folder != null; folder = folder.parent) {
+                folder.size.add(delta);
+                // Set after the size so a consumer that cleared the flag first cannot miss the change
+                if (!folder.changed) {
+                    folder.changed = true;
+                }
+            }
+        }
+
+        void markChanged() {
+            for (FolderNode folder = this; folder != null; folder = folder.parent) {
+                if (!folder.changed) {
+                    folder.changed = true;
+                }
+            }
+        }
+
+        @Override
+        public boolean pollChanged() {
+            if (!changed) {
+                return false;
+            }
+            changed = false;
+            return true;
+        }
+
+        // Writers take the node's monitor, readers never do
+        synchronized void addSubfolder(FolderNode subfolder) {
+            subfolders = subfolders.append(subfolder);
+        }
+
+        synchronized void removeSubfolder(FolderNode subfolder) {
+            subfolders = subfolders.remove(subfolder);
+        }
+
+        @Override
+        public List<FolderInfo> getSubfolders() {
+            return subfolders;
+        }
+
+        @Override
+        public List<String> getSubfolderPaths() {
+            Subfolders current = subfolders;
+            List<String> subfolderPaths = new ArrayList<>(current.size());
+            for (int i = 0; i < current.size(); i++) {
+                subfolderPaths.add(current.get(i).path);
+            }
+            return subfolderPaths;
+        }
+    }
+
+    // Append only view over a shared array. Appending writes past the end of the newest view and publishes
+    // a longer one, so older views never see the slot change; a removal copies the array.
+    private static class Subfolders extends AbstractList<FolderInfo> implements RandomAccess {
+        static final Subfolders EMPTY = new Subfolders(new FolderNode[0], 0);
+
+        private final FolderNode[] nodes;
+        private final int size;
+
+        Subfolders(FolderNode[] nodes, int size) {
+            this.nodes = nodes;
+            this.size = size;
+        }
+
+        // Only on the newest view, under the parent's monitor
+        Subfolders append(FolderNode node) {
+            FolderNode[] grown = size < nodes.length ? nodes : Arrays.copyOf(nodes, Math.max(4, size * 2));
+            grown[size] = node;
+            return new Subfolders(grown, size + 1);
+        }
+
+        Subfolders remove(FolderNode node) {
+            for (int i = 0; i < size; i++) {
+                if (nodes[i] == node) {
+                    FolderNode[] remaining = new FolderNode[Math.max(4, size - 1)];
+                    System.arraycopy(nodes, 0, remaining, 0, i);
+                    System.arraycopy(nodes, i + 1, remaining, i, size - i - 1);
+                    return new Subfolders(remaining, size - 1);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public FolderNode get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+            }
+            return nodes[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+// Holds the tree a scan is filling in for the calculator
+interface FolderStore<N> extends FolderView<N> {
+    // An empty path is a virtual root whose subfolders are named after the full path of each scanned root
+    N addRoot(String path, String separator);
+
+    // Registers a folder under its parent, visible to readers straight away with size 0
+    N addFolder(N parent, String path, String name);
+
+    // Adds to the folder and all of its ancestors
+    void addSize(N folder, long delta);
+
+    void setLastModified(N folder, long lastModified);
+
+    // Detaches the folder and subtracts its size from all of its ancestors
+    void removeFolder(N folder);
+}
@@ -0,0 +1,17 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static me.maborg.ConcurrentHierarchicalFolderSizeCalculator.FolderInfo;
+
+// Read side of a scanned tree, all a snapshot offers; N is the store's own handle for a folder
+interface FolderView<N> {
+    String getSeparator();
+
+    N getFolder(String path);
+
+    FolderInfo getRootFolderInfo();
+
+    FolderInfo getFolderInfo(String path);
+}
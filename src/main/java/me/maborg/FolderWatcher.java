@@ -0,0 +1,101 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Turns WatchService events into a debounced stream of folders that need to be listed again
+class FolderWatcher implements Closeable {
+    private static final long DEBOUNCE_MILLIS = 200;
+
+    private final WatchService watchService;
+    private volatile boolean registrationFailed;
+    private Thread thread;
+
+    FolderWatcher(FileSystem fileSystem) throws IOException {
+        this.watchService = fileSystem.newWatchService();
+    }
+
+    // Called by the scan for every folder it visits; gives up quietly once the OS runs out of watches
+    void register(Path folder) {
+        if (registrationFailed) {
+            return;
+        }
+        try {
+            folder.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            registrationFailed = true;
+            System.err.println("Watching stopped at " + folder + ": " + e);
+        } catch (ClosedWatchServiceException e) {
+            // Closed by a new scan or stop()
+        }
+    }
+
+    // Events that arrived while the scan was running are delivered once this starts
+    synchronized void start(Consumer<Path> dirtyFolders) {
+        thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Set<Path> dirty = new LinkedHashSet<>();
+                    WatchKey key = watchService.take();
+                    do {
+                        // Any event inside a folder only requires that one folder to be listed again
+                        key.pollEvents();
+                        dirty.add((Path) key.watchable());
+                        key.reset();
+                        key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                    } while (key != null);
+                    for (Path folder : dirty) {
+                        try {
+                            dirtyFolders.accept(folder);
+                        } catch (RuntimeException e) {
+                            // Only this folder is left stale, watching goes on
+                            System.err.println("Refreshing " + folder + " failed: " + e);
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Closed
+            }
+        }, "folder-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Returns once a refresh still running has finished, unless called from that refresh
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            current = thread;
+        }
+        if (current != null && current != Thread.currentThread()) {
+            current.interrupt();
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
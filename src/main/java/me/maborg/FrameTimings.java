@@ -0,0 +1,170 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Per phase durations of the frames drawn by the render thread, kept for the last WINDOW frames for percentiles
+// and optionally appended to a CSV trace. Only the render thread records; the layout time arrives with the frame.
+// GPU phases come from timer queries read a few frames late, in the row of the frame that read them and
+// with the frame they were measured in as gpuFrame.
+class FrameTimings {
+    enum Phase {
+        // Layout thread, for the frame presented now
+        LAYOUT("layout", "layout"),
+        // Handing the frame's instances to the renderer
+        PACK("pack", "pack"),
+        UPLOAD("upload", "upload"),
+        DRAW("draw", "draw"),
+        TEXT("text", "text"),
+        // Includes waiting for vsync
+        SWAP("swap", "swap"),
+        FRAME("frame", "frame"),
+        GPU_UPLOAD("gpu upload", "gpuUpload"),
+        GPU_DRAW("gpu draw", "gpuDraw"),
+        GPU_TEXT("gpu text", "gpuText");
+
+        final String label;
+        final String column;
+
+        Phase(String label, String column) {
+            this.label = label;
+            this.column = column;
+        }
+    }
+
+    private static final int WINDOW = 256;
+    private static final long NOT_MEASURED = -1;
+
+    private final long[][] samples = new long[Phase.values().length][WINDOW];
+    private final int[] sampleCounts = new int[Phase.values().length];
+    private final long[] current = new long[Phase.values().length];
+    private long gpuFrame = NOT_MEASURED;
+    private long frame;
+    private final long startNanos = System.nanoTime();
+    private long frameStartNanos;
+    private PrintWriter trace;
+
+    FrameTimings() {
+        Arrays.fill(current, NOT_MEASURED);
+    }
+
+    void beginFrame() {
+        frameStartNanos = System.nanoTime();
+    }
+
+    long getFrame() {
+        return frame;
+    }
+
+    // Adds to the phase in the current frame, a phase may be entered more than once
+    void record(Phase phase, long nanos) {
+        int index = phase.ordinal();
+        current[index] = current[index] == NOT_MEASURED ? nanos : current[index] + nanos;
+    }
+
+    // What the current frame has recorded for the phase so far, 0 if nothing
+    long recorded(Phase phase) {
+        return Math.max(0, current[phase.ordinal()]);
+    }
+
+    void recordGpu(long measuredFrame, Phase phase, long nanos) {
+        gpuFrame = measuredFrame;
+        record(phase, nanos);
+    }
+
+    // Closes the frame: FRAME is the time since beginFrame()
+    void endFrame() {
+        record(Phase.FRAME, System.nanoTime() - frameStartNanos);
+        for (int index = 0; index < current.length; index++) {
+            if (current[index] != NOT_MEASURED) {
+                samples[index][sampleCounts[index]++ % WINDOW] = current[index];
+            }
+        }
+        if (trace != null) {
+            writeRow();
+        }
+        Arrays.fill(current, NOT_MEASURED);
+        gpuFrame = NOT_MEASURED;
+        frame++;
+    }
+
+    // Nanoseconds below which the given fraction of the phase's recent samples fall, -1 without samples
+    long percentile(Phase phase, double fraction) {
+        int index = phase.ordinal();
+        int count = Math.min(sampleCounts[index], WINDOW);
+        if (count == 0) {
+            return NOT_MEASURED;
+        }
+        long[] sorted = Arrays.copyOf(samples[index], count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))];
+    }
+
+    // One line per measured phase, in milliseconds
+    List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%-11s %6s %6s %6s %6s", "ms", "p50", "p95", "p99", "max"));
+        for (Phase phase : Phase.values()) {
+            if (sampleCounts[phase.ordinal()] == 0) {
+                continue;
+            }
+            lines.add(String.format(Locale.ROOT, "%-11s %6.2f %6.2f %6.2f %6.2f", phase.label,
+                percentile(phase, 0.5) / 1e6, percentile(phase, 0.95) / 1e6, percentile(phase, 0.99) / 1e6,
+                percentile(phase, 1) / 1e6));
+        }
+        return lines;
+    }
+
+    // Appends one row per frame until stopTrace(); an existing file is replaced
+    void startTrace(Path file) throws IOException {
+        stopTrace();
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        trace = new PrintWriter(Files.newBufferedWriter(file));
+        StringBuilder header = new StringBuilder("frame,elapsedMillis");
+        for (Phase phase : Phase.values()) {
+            header.append(',').append(phase.column).append("Nanos");
+        }
+        trace.println(header.append(",gpuFrame"));
+    }
+
+    void stopTrace() {
+        if (trace != null) {
+            trace.close();
+            trace = null;
+        }
+    }
+
+    boolean isTracing() {
+        return trace != null;
+    }
+
+    // Phases not measured in a frame are left empty
+    private void writeRow() {
+        StringBuilder row = new StringBuilder(128);
+        row.append(frame).append(',').append((frameStartNanos - startNanos) / 1_000_000);
+        for (long nanos : current) {
+            row.append(',');
+            if (nanos != NOT_MEASURED) {
+                row.append(nanos);
+            }
+        }
+        row.append(',');
+        if (gpuFrame != NOT_MEASURED) {
+            row.append(gpuFrame);
+        }
+        trace.println(row);
+    }
+}
@@ -0,0 +1,83 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL33;
+
+// GL_TIME_ELAPSED queries around a few phases of each frame. Every frame uses its own set of query objects
+// out of a small ring, and a set is only read when its turn comes round again and the GPU reports the result
+// available, so the render thread never waits for the GPU. A result still pending then is dropped.
+class GpuTimer {
+  private static final int FRAMES = 3;
+
+  private final FrameTimings timings;
+  private final FrameTimings.Phase[] phases;
+  private final int[][] queries;
+  private final boolean[][] issued;
+  private final long[] measuredFrames;
+  private int slot;
+  private int dropped;
+
+  GpuTimer(FrameTimings timings, FrameTimings.Phase... phases) {
+    this.timings = timings;
+    this.phases = phases;
+    queries = new int[FRAMES][phases.length];
+    issued = new boolean[FRAMES][phases.length];
+    measuredFrames = new long[FRAMES];
+    for (int[] slotQueries : queries) {
+      GL15.glGenQueries(slotQueries);
+    }
+  }
+
+  // Timer queries cannot nest, so phases are begun and ended one after the other
+  void begin(FrameTimings.Phase phase) {
+    int index = indexOf(phase);
+    GL15.glBeginQuery(GL33.GL_TIME_ELAPSED, queries[slot][index]);
+    issued[slot][index] = true;
+  }
+
+  void end() {
+    GL15.glEndQuery(GL33.GL_TIME_ELAPSED);
+  }
+
+  // Before FrameTimings.endFrame(): moves on to the oldest set, reporting what it measured if it is ready
+  void endFrame() {
+    measuredFrames[slot] = timings.getFrame();
+    slot = (slot + 1) % FRAMES;
+    for (int index = 0; index < phases.length; index++) {
+      if (!issued[slot][index]) {
+        continue;
+      }
+      issued[slot][index] = false;
+      int query = queries[slot][index];
+      if (GL15.glGetQueryObjecti(query, GL15.GL_QUERY_RESULT_AVAILABLE) == GL11.GL_TRUE) {
+        timings.recordGpu(measuredFrames[slot], phases[index], GL33.glGetQueryObjecti64(query, GL15.GL_QUERY_RESULT));
+      } else {
+        dropped++;
+      }
+    }
+  }
+
+  // Results the GPU had not delivered FRAMES - 1 frames later
+  int getDropped() {
+    return dropped;
+  }
+
+  void free() {
+    for (int[] slotQueries : queries) {
+      GL15.glDeleteQueries(slotQueries);
+    }
+  }
+
+  private int indexOf(FrameTimings.Phase phase) {
+    for (int index = 0; index < phases.length; index++) {
+      if (phases[index] == phase) {
+        return index;
+      }
+    }
+    throw new IllegalArgumentException("Not a timed phase: " + phase);
+  }
+}
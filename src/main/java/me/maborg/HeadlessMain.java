@@ -0,0 +1,337 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static me.maborg.ConcurrentHierarchicalFolderSizeCalculator.FolderInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Scans without a window and streams the largest folders of every level while the scan runs.
+// Only touches the calculator, so neither LWJGL nor the fonts are ever loaded.
+//
+//   java -cp <jar> me.maborg.HeadlessMain [--format ndjson|csv] [--top N] [--depth N]
+//        [--interval MILLIS] [--threads N] [--store compact|objects] [--exclude PATTERN]...
+//        [--one-file-system] [--follow-links] [--baseline SNAPSHOT] [--save SNAPSHOT] PATH...
+//
+// A single PATH that is a zip or jar file is sized from the inside, without extracting it.
+// --save writes the finished scan as a snapshot; --baseline compares the finished scan with one written earlier,
+// reporting how much each folder down to --depth changed and the --top folders that grew the most.
+public class HeadlessMain {
+  private static final String CSV_HEADER = "type,elapsedMillis,final,level,rank,path,bytes";
+
+  private final PrintStream out;
+  private final boolean csv;
+  private final int top;
+  private final int depth;
+  private Path baselineFile;
+  private Path saveFile;
+  private long startNanos;
+
+  HeadlessMain(PrintStream out, boolean csv, int top, int depth) {
+    this.out = out;
+    this.csv = csv;
+    this.top = top;
+    this.depth = depth;
+  }
+
+  void setBaselineFile(Path baselineFile) {
+    this.baselineFile = baselineFile;
+  }
+
+  void setSaveFile(Path saveFile) {
+    this.saveFile = saveFile;
+  }
+
+  int run(ConcurrentHierarchicalFolderSizeCalculator calculator, FileSystem fileSystem, List<String> rootPaths,
+      long intervalMillis) throws InterruptedException {
+    startNanos = System.nanoTime();
+    ScanSession session;
+    try {
+      session = calculator.startCalculation(fileSystem, rootPaths);
+    } catch (IllegalArgumentException e) {
+      // A malformed exclude pattern
+      calculator.shutdown();
+      return usage(e.getMessage());
+    }
+    if (csv) {
+      out.println(CSV_HEADER);
+    }
+    while (!session.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS)) {
+      report(calculator.getRootFolderInfo(), false);
+    }
+    try {
+      session.getCompletion().get();
+    } catch (ExecutionException | CancellationException e) {
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      // The message takes the place of the path
+      record("error", true, 0, 0, String.valueOf(cause.getMessage()), 0);
+      out.flush();
+      return 1;
+    } finally {
+      calculator.shutdown();
+    }
+    report(calculator.getRootFolderInfo(), true);
+    try {
+      if (baselineFile != null) {
+        reportDiff(calculator.loadSnapshot(baselineFile), calculator.getRootFolderInfo(), fileSystem.getSeparator());
+      }
+      if (saveFile != null) {
+        calculator.writeSnapshot(saveFile);
+      }
+    } catch (IOException e) {
+      record("error", true, 0, 0, String.valueOf(e.getMessage()), 0);
+      out.flush();
+      return 1;
+    }
+    return 0;
+  }
+
+  // Per folder deltas in tree order, then the biggest growers
+  private void reportDiff(FolderInfo baseline, FolderInfo root, String separator) {
+    ScanDiff diff = new ScanDiff(top, depth,
+        (path, level, before, after) -> record("delta", true, level, 0, path, after - before));
+    diff.compare(baseline, root, separator);
+    List<ScanDiff.Grower> growers = diff.getTopGrowers();
+    for (int rank = 0; rank < growers.size(); rank++) {
+      record("grower", true, 0, rank + 1, growers.get(rank).getPath(), growers.get(rank).getDelta());
+    }
+    out.flush();
+  }
+
+  // One progress record with the running total, then the current top folders of each level
+  private void report(FolderInfo root, boolean complete) {
+    if (root == null) {
+      return;
+    }
+    record(complete ? "done" : "progress", complete, 0, 0, root.getPath(), root.getSize());
+    List<List<FolderInfo>> levels = topPerLevel(root);
+    for (int level = 0; level < levels.size(); level++) {
+      List<FolderInfo> ranked = levels.get(level);
+      for (int rank = 0; rank < ranked.size(); rank++) {
+        FolderInfo folder = ranked.get(rank);
+        record("top", complete, level + 1, rank + 1, folder.getPath(), folder.getSize());
+      }
+    }
+    out.flush();
+  }
+
+  // Largest folders of levels 1..depth below the root, biggest first
+  private List<List<FolderInfo>> topPerLevel(FolderInfo root) {
+    List<List<FolderInfo>> levels = new ArrayList<>();
+    List<FolderInfo> current = Arrays.asList(root);
+    for (int level = 1; level <= depth && !current.isEmpty(); level++) {
+      List<FolderInfo> next = new ArrayList<>();
+      // Sizes keep moving during a scan, so every folder's size is read once for the heap
+      PriorityQueue<Sized> largest = new PriorityQueue<>(top + 1, Comparator.comparingLong(sized -> sized.size));
+      for (FolderInfo parent : current) {
+        for (FolderInfo subfolder : parent.getSubfolders()) {
+          next.add(subfolder);
+          largest.add(new Sized(subfolder, subfolder.getSize()));
+          if (largest.size() > top) {
+            largest.poll();
+          }
+        }
+      }
+      List<FolderInfo> ranked = new ArrayList<>(largest.size());
+      while (!largest.isEmpty()) {
+        ranked.add(0, largest.poll().folder);
+      }
+      levels.add(ranked);
+      current = next;
+    }
+    return levels;
+  }
+
+  private void record(String type, boolean complete, int level, int rank, String path, long bytes) {
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+    StringBuilder line = new StringBuilder(128);
+    if (csv) {
+      line.append(type).append(',').append(elapsedMillis).append(',').append(complete).append(',')
+          .append(level).append(',').append(rank).append(',');
+      appendCsv(line, path);
+      line.append(',').append(bytes);
+    } else {
+      line.append("{\"type\":\"").append(type).append("\",\"elapsedMillis\":").append(elapsedMillis)
+          .append(",\"final\":").append(complete);
+      if (level > 0) {
+        line.append(",\"level\":").append(level);
+      }
+      if (rank > 0) {
+        line.append(",\"rank\":").append(rank);
+      }
+      line.append(",\"path\":");
+      appendJson(line, path);
+      line.append(",\"bytes\":").append(bytes).append('}');
+    }
+    out.println(line);
+  }
+
+  private static void appendJson(StringBuilder line, String value) {
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  private static void appendCsv(StringBuilder line, String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      line.append(value);
+    } else {
+      line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+  }
+
+  private static class Sized {
+    final FolderInfo folder;
+    final long size;
+
+    Sized(FolderInfo folder, long size) {
+      this.folder = folder;
+      this.size = size;
+    }
+  }
+
+  private static int usage(String problem) {
+    System.err.println(problem);
+    System.err.println("Usage: HeadlessMain [--format ndjson|csv] [--top N] [--depth N] [--interval MILLIS]"
+        + " [--threads N] [--store compact|objects] [--exclude PATTERN]... [--one-file-system] [--follow-links]"
+        + " [--baseline SNAPSHOT] [--save SNAPSHOT] PATH...");
+    return 2;
+  }
+
+  static int main(String[] args, PrintStream out) throws InterruptedException {
+    boolean csv = false;
+    int top = 10;
+    int depth = 3;
+    long intervalMillis = 1000;
+    int threads = 1;
+    ConcurrentHierarchicalFolderSizeCalculator.StoreType storeType =
+        ConcurrentHierarchicalFolderSizeCalculator.StoreType.COMPACT;
+    List<String> rootPaths = new ArrayList<>();
+    List<String> excludes = new ArrayList<>();
+    boolean oneFileSystem = false;
+    boolean followLinks = false;
+    Path baselineFile = null;
+    Path saveFile = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (!arg.startsWith("--")) {
+          rootPaths.add(arg);
+          continue;
+        }
+        if (arg.equals("--one-file-system")) {
+          oneFileSystem = true;
+          continue;
+        }
+        if (arg.equals("--follow-links")) {
+          followLinks = true;
+          continue;
+        }
+        if (i + 1 == args.length) {
+          return usage("Missing value for " + arg);
+        }
+        String value = args[++i];
+        switch (arg) {
+          case "--format":
+            if (!value.equals("csv") && !value.equals("ndjson")) {
+              return usage("Unknown format " + value);
+            }
+            csv = value.equals("csv");
+            break;
+          case "--top":
+            top = Integer.parseInt(value);
+            break;
+          case "--depth":
+            depth = Integer.parseInt(value);
+            break;
+          case "--interval":
+            intervalMillis = Long.parseLong(value);
+            break;
+          case "--threads":
+            threads = Integer.parseInt(value);
+            break;
+          case "--exclude":
+            excludes.add(value);
+            break;
+          case "--baseline":
+            baselineFile = Paths.get(value);
+            break;
+          case "--save":
+            saveFile = Paths.get(value);
+            break;
+          case "--store":
+            storeType = ConcurrentHierarchicalFolderSizeCalculator.StoreType.valueOf(value.toUpperCase());
+            break;
+          default:
+            return usage("Unknown option " + arg);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      return usage(e.getMessage());
+    }
+    if (rootPaths.isEmpty() || top < 1 || depth < 1 || intervalMillis < 1 || threads < 1) {
+      return usage("Nothing to scan or an option out of range");
+    }
+    ConcurrentHierarchicalFolderSizeCalculator calculator =
+        new ConcurrentHierarchicalFolderSizeCalculator(threads, storeType);
+    calculator.setExcludes(excludes);
+    calculator.setOneFileSystem(oneFileSystem);
+    calculator.setFollowLinks(followLinks);
+    // Neither is reported here, so no worker keeps a largest file heap or an extension table
+    calculator.setLargestFiles(0);
+    calculator.setExtensionTotals(false);
+    HeadlessMain headless = new HeadlessMain(out, csv, top, depth);
+    headless.setBaselineFile(baselineFile);
+    headless.setSaveFile(saveFile);
+    Path archive = Paths.get(rootPaths.get(0));
+    if (rootPaths.size() > 1 || !Files.isRegularFile(archive)) {
+      return headless.run(calculator, FileSystems.getDefault(), rootPaths, intervalMillis);
+    }
+    try (FileSystem archiveFileSystem = FileSystems.newFileSystem(archive, (ClassLoader) null)) {
+      List<String> archiveRoots = new ArrayList<>();
+      for (Path archiveRoot : archiveFileSystem.getRootDirectories()) {
+        archiveRoots.add(archiveRoot.toString());
+      }
+      return headless.run(calculator, archiveFileSystem, archiveRoots, intervalMillis);
+    } catch (IOException | ProviderNotFoundException e) {
+      return usage("Cannot open " + archive + " as an archive: " + e.getMessage());
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException, UnsupportedEncodingException {
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+        false, "UTF-8");
+    int status = main(args, out);
+    out.flush();
+    System.exit(status);
+  }
+}
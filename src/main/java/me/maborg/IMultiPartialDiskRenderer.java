@@ -3,6 +3,9 @@ package me.maborg;
 public interface IMultiPartialDiskRenderer {
   void init(int slices);
 
+  // Framebuffer size in pixels, used to pick how finely each wedge is tessellated
+  void setViewportSize(int width, int height);
+
   void add(
       float centerX, float centerY, float startAngle, float sweepAngle, float innerRadius, float outerRadius,
       float r, float g, float b, float a);
@@ -0,0 +1,264 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memAllocFloat;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.system.MemoryUtil.memFree;
+import static org.lwjgl.system.MemoryUtil.memRealloc;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL44;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+// Per instance attributes kept off heap. The staging buffer still holds what the GPU holds, so writing
+// an instance only widens the dirty range when a value actually differs and only that range is sent.
+// A persistently mapped buffer is split into REGIONS regions used in turn, each guarded by the fence of the
+// last draw that read it: a frame writes the region the GPU finished with longest ago and only waits when
+// the GPU is that many frames behind.
+class InstanceBuffer {
+  static final int FLOATS_PER_INSTANCE = 10;
+  static final int BYTES_PER_INSTANCE = FLOATS_PER_INSTANCE * Float.BYTES;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int REGIONS = 3;
+  private static final long FENCE_TIMEOUT_NANOS = 1_000_000_000L;
+
+  private final boolean persistent;
+  private FloatBuffer staging;
+  private int count;
+  // Float indices: [dirtyFrom, dirtyTo) differs from the GPU copy, [0, validFloats) is known to match it
+  private int dirtyFrom = Integer.MAX_VALUE;
+  private int dirtyTo;
+  private int validFloats;
+  private int bufferId;
+  private int bufferCapacity;
+  private ByteBuffer mapped;
+  // Persistent mapping only: the region draws read, and per region the float range the frames written to
+  // the other regions changed since it was last written, [regionDirtyFrom, regionDirtyTo)
+  private int region;
+  private final long[] fences = new long[REGIONS];
+  private final int[] regionDirtyFrom = new int[REGIONS];
+  private final int[] regionDirtyTo = new int[REGIONS];
+
+  // Persistent mapping needs GL 4.4 buffer storage, otherwise the buffer is updated with glBufferSubData.
+  // The buffer object is created by the first upload(), so filling the staging side needs no context.
+  InstanceBuffer(boolean persistentMapping) {
+    persistent = persistentMapping && GL.getCapabilities().OpenGL44;
+    staging = memAllocFloat(INITIAL_CAPACITY * FLOATS_PER_INSTANCE);
+  }
+
+  boolean isPersistent() {
+    return persistent;
+  }
+
+  int getBufferId() {
+    return bufferId;
+  }
+
+  // First instance of the region the next draw reads, for glDrawArraysInstancedBaseInstance
+  int getBaseInstance() {
+    return persistent ? region * bufferCapacity : 0;
+  }
+
+  int size() {
+    return count;
+  }
+
+  // Keeps the contents, the next frame's instances are compared against them
+  void clear() {
+    count = 0;
+  }
+
+  void add(float centerX, float centerY, float startAngle, float sweepAngle, float innerRadius,
+      float outerRadius, float r, float g, float b, float a) {
+    int index = count * FLOATS_PER_INSTANCE;
+    if (index + FLOATS_PER_INSTANCE > staging.capacity()) {
+      staging = memRealloc(staging, staging.capacity() * 2);
+    }
+    put(index, centerX);
+    put(index + 1, centerY);
+    put(index + 2, startAngle);
+    put(index + 3, sweepAngle);
+    put(index + 4, innerRadius);
+    put(index + 5, outerRadius);
+    put(index + 6, r);
+    put(index + 7, g);
+    put(index + 8, b);
+    put(index + 9, a);
+    count++;
+  }
+
+  private void put(int index, float value) {
+    if (index >= validFloats || staging.get(index) != value) {
+      staging.put(index, value);
+      if (index < dirtyFrom) {
+        dirtyFrom = index;
+      }
+      if (index >= dirtyTo) {
+        dirtyTo = index + 1;
+      }
+    }
+  }
+
+  // Sends the dirty range. Returns true when the GL buffer object was replaced and the vertex attributes
+  // have to be pointed at the new one.
+  boolean upload() {
+    boolean grown = bufferId == 0 || count > bufferCapacity;
+    boolean replaced = false;
+    if (grown) {
+      int oldBufferId = bufferId;
+      allocate(Math.max(count, Math.max(INITIAL_CAPACITY, bufferCapacity * 2)));
+      replaced = bufferId != oldBufferId;
+    }
+    int usedFloats = count * FLOATS_PER_INSTANCE;
+    if (dirtyTo > usedFloats) {
+      dirtyTo = usedFloats;
+    }
+    if (dirtyFrom < dirtyTo) {
+      if (persistent) {
+        writeNextRegion(usedFloats);
+      } else {
+        long offset = (long) dirtyFrom * Float.BYTES;
+        long length = (long) (dirtyTo - dirtyFrom) * Float.BYTES;
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferId);
+        if (!grown && dirtyFrom == 0 && dirtyTo == usedFloats) {
+          // Everything changes: orphan the storage instead of waiting for draws still reading it
+          GL15.glBufferData(GL15.GL_ARRAY_BUFFER, (long) bufferCapacity * BYTES_PER_INSTANCE, GL15.GL_DYNAMIC_DRAW);
+        }
+        GL15.nglBufferSubData(GL15.GL_ARRAY_BUFFER, offset, length, memAddress(staging) + offset);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+      }
+    }
+    uploaded();
+    return replaced;
+  }
+
+  // Bytes the next upload() would send
+  long dirtyBytes() {
+    int to = Math.min(dirtyTo, count * FLOATS_PER_INSTANCE);
+    return dirtyFrom < to ? (long) (to - dirtyFrom) * Float.BYTES : 0;
+  }
+
+  // The GPU copy now matches the staging buffer
+  void uploaded() {
+    validFloats = Math.max(validFloats, count * FLOATS_PER_INSTANCE);
+    dirtyFrom = Integer.MAX_VALUE;
+    dirtyTo = 0;
+  }
+
+  // Moves on to the region the GPU finished with longest ago and brings it up to date with the staging
+  // buffer: this frame's changes and those of the frames written to the other regions since
+  private void writeNextRegion(int usedFloats) {
+    for (int index = 0; index < REGIONS; index++) {
+      regionDirtyFrom[index] = Math.min(regionDirtyFrom[index], dirtyFrom);
+      regionDirtyTo[index] = Math.max(regionDirtyTo[index], dirtyTo);
+    }
+    region = (region + 1) % REGIONS;
+    waitForGpu(region);
+    int from = regionDirtyFrom[region];
+    int to = Math.min(regionDirtyTo[region], usedFloats);
+    if (from < to) {
+      long offset = (long) from * Float.BYTES;
+      long regionOffset = (long) region * bufferCapacity * BYTES_PER_INSTANCE;
+      memCopy(memAddress(staging) + offset, memAddress(mapped) + regionOffset + offset,
+          (long) (to - from) * Float.BYTES);
+    }
+    // Changes past the instances in use stay owed to the region until they are in use again
+    if (regionDirtyTo[region] > usedFloats) {
+      regionDirtyFrom[region] = Math.max(from, usedFloats);
+    } else {
+      regionDirtyFrom[region] = Integer.MAX_VALUE;
+      regionDirtyTo[region] = 0;
+    }
+  }
+
+  // New storage starts undefined, so everything in use is sent again
+  private void allocate(int capacity) {
+    long bytes = (long) capacity * BYTES_PER_INSTANCE;
+    if (persistent) {
+      // Buffer storage is immutable, growing means a new buffer object
+      if (bufferId != 0) {
+        for (int index = 0; index < REGIONS; index++) {
+          waitForGpu(index);
+        }
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferId);
+        GL15.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        GL15.glDeleteBuffers(bufferId);
+      }
+      int flags = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+      bufferId = GL15.glGenBuffers();
+      GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferId);
+      GL44.glBufferStorage(GL15.GL_ARRAY_BUFFER, bytes * REGIONS, flags);
+      mapped = GL30.glMapBufferRange(GL15.GL_ARRAY_BUFFER, 0, bytes * REGIONS, flags);
+      region = 0;
+      for (int index = 0; index < REGIONS; index++) {
+        regionDirtyFrom[index] = 0;
+        regionDirtyTo[index] = count * FLOATS_PER_INSTANCE;
+      }
+    } else {
+      if (bufferId == 0) {
+        bufferId = GL15.glGenBuffers();
+      }
+      GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferId);
+      GL15.glBufferData(GL15.GL_ARRAY_BUFFER, bytes, GL15.GL_DYNAMIC_DRAW);
+    }
+    GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+    bufferCapacity = capacity;
+    validFloats = 0;
+    dirtyFrom = 0;
+    dirtyTo = count * FLOATS_PER_INSTANCE;
+  }
+
+  // Called after the draw that reads this buffer; a mapped write waits for it before reusing the region.
+  // A region drawn again without a new upload keeps one fence, the latest draw's.
+  void drawn() {
+    if (persistent) {
+      if (fences[region] != 0) {
+        GL32.glDeleteSync(fences[region]);
+      }
+      fences[region] = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+  }
+
+  private void waitForGpu(int index) {
+    long fence = fences[index];
+    if (fence == 0) {
+      return;
+    }
+    int status;
+    do {
+      status = GL32.glClientWaitSync(fence, GL32.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+    } while (status == GL32.GL_TIMEOUT_EXPIRED);
+    GL32.glDeleteSync(fence);
+    fences[index] = 0;
+  }
+
+  void free() {
+    for (int index = 0; index < REGIONS; index++) {
+      if (fences[index] != 0) {
+        GL32.glDeleteSync(fences[index]);
+        fences[index] = 0;
+      }
+    }
+    if (persistent && bufferId != 0) {
+      GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferId);
+      GL15.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
+      GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+    }
+    if (bufferId != 0) {
+      GL15.glDeleteBuffers(bufferId);
+    }
+    bufferId = 0;
+    mapped = null;
+    memFree(staging);
+    staging = null;
+  }
+}
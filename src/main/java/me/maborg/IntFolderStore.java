@@ -0,0 +1,26 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+// A store whose folder handles are int ids. The scan keeps them as plain ints instead of boxing
+// every folder it registers into an Integer.
+interface IntFolderStore extends FolderStore<Integer> {
+    int NONE = -1;
+
+    int addRootId(String path, String separator);
+
+    int addFolderId(int parent, String path, String name);
+
+    void addSize(int folder, long delta);
+
+    void setLastModified(int folder, long lastModified);
+
+    void removeFolder(int folder);
+
+    // Lets later appends reuse the ids of removed folders. Only called while nothing else writes to the store.
+    void recycleRemoved();
+
+    // NONE when the path is not in the store
+    int getFolderId(String path);
+}
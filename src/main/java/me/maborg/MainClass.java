@@ -8,6 +8,9 @@ import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.GLFW_CONTEXT_VERSION_MAJOR;
 import static org.lwjgl.glfw.GLFW.GLFW_CONTEXT_VERSION_MINOR;
 import static org.lwjgl.glfw.GLFW.GLFW_FALSE;
+import static org.lwjgl.glfw.GLFW.GLFW_KEY_D;
+import static org.lwjgl.glfw.GLFW.GLFW_KEY_H;
+import static org.lwjgl.glfw.GLFW.GLFW_KEY_T;
 import static org.lwjgl.glfw.GLFW.GLFW_KEY_ESCAPE;
 import static org.lwjgl.glfw.GLFW.GLFW_MOUSE_BUTTON_1;
 import static org.lwjgl.glfw.GLFW.GLFW_OPENGL_CORE_PROFILE;
@@ -20,20 +23,25 @@ import static org.lwjgl.glfw.GLFW.GLFW_VISIBLE;
 import static org.lwjgl.glfw.GLFW.glfwCreateWindow;
 import static org.lwjgl.glfw.GLFW.glfwDefaultWindowHints;
 import static org.lwjgl.glfw.GLFW.glfwDestroyWindow;
+import static org.lwjgl.glfw.GLFW.glfwGetFramebufferSize;
 import static org.lwjgl.glfw.GLFW.glfwGetPrimaryMonitor;
 import static org.lwjgl.glfw.GLFW.glfwGetVideoMode;
 import static org.lwjgl.glfw.GLFW.glfwGetWindowSize;
 import static org.lwjgl.glfw.GLFW.glfwInit;
 import static org.lwjgl.glfw.GLFW.glfwMakeContextCurrent;
 import static org.lwjgl.glfw.GLFW.glfwPollEvents;
+import static org.lwjgl.glfw.GLFW.glfwSetCursorPosCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetErrorCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetKeyCallback;
+import static org.lwjgl.glfw.GLFW.glfwSetMouseButtonCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetWindowPos;
+import static org.lwjgl.glfw.GLFW.glfwSetWindowRefreshCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetWindowShouldClose;
 import static org.lwjgl.glfw.GLFW.glfwShowWindow;
 import static org.lwjgl.glfw.GLFW.glfwSwapBuffers;
 import static org.lwjgl.glfw.GLFW.glfwSwapInterval;
 import static org.lwjgl.glfw.GLFW.glfwTerminate;
+import static org.lwjgl.glfw.GLFW.glfwWaitEventsTimeout;
 import static org.lwjgl.glfw.GLFW.glfwWindowHint;
 import static org.lwjgl.glfw.GLFW.glfwWindowShouldClose;
 import static org.lwjgl.opengl.GL11.GL_COLOR_BUFFER_BIT;
@@ -56,19 +64,57 @@ import org.lwjgl.opengl.GL;
 import org.lwjgl.system.MemoryStack;
 
 import java.awt.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.DoubleBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
 
 public class MainClass {
+  // Time to first frame is measured from here and, where the VM reports it, from process start
+  private static final long LAUNCH_NANOS = System.nanoTime();
+  private static final long STATS_INTERVAL_NANOS = 500_000_000L;
+  // Only a safety net: input, window changes and new frames all wake the loop themselves
+  private static final double IDLE_WAIT_SECONDS = 0.5;
 
   private long window;
   private IMultiPartialDiskRenderer renderer;
+  private MultiPartialDiskRenderer diskRenderer;
+  private TimedRenderer timedRenderer;
+  // Phase timings of every drawn frame; H shows their percentiles, T writes them to a CSV trace
+  private final FrameTimings frameTimings = new FrameTimings();
+  private boolean hudVisible;
+  private final List<String> hudLines = new ArrayList<>();
+  private long hudRefreshNanos;
 
   private ConcurrentHierarchicalFolderSizeCalculator calculator;
   private SunburstFolderSizeVisualizer visualizer;
   private String currentPath = "";
+  // The previous run's scan, for coloring by what changed since
+  private FolderInfo baseline;
+  private boolean colorByDelta;
+  // Largest files and extensions, rebuilt twice a second rather than every frame
+  private final List<String> statsLines = new ArrayList<>();
+  private long statsRefreshNanos;
+  // Set once the statistics were read after the scan ended; they cannot change after that
+  private boolean statsFinal;
+  private ScanSession session;
+  // Input or a window change since the last drawn frame
+  private boolean redrawRequested = true;
+  // -Djtreepie.continuousRendering=true goes back to drawing every vsync
+  private final boolean continuousRendering = Boolean.getBoolean("jtreepie.continuousRendering");
 
   private TextRenderer textRenderer;
+  // Startup phases up to the first swap, reported once
+  private long windowNanos;
+  private long fontNanos;
+  private long rendererNanos;
+  private boolean firstFrameReported;
 
   public void run() {
     System.out.println("Hello LWJGL " + Version.getVersion() + "!");
@@ -110,10 +156,25 @@ public class MainClass {
 
     // Setup a key callback
     glfwSetKeyCallback(window, (windowp, key, scancode, action, mods) -> {
+      redrawRequested = true;
       if (key == GLFW_KEY_ESCAPE && action == GLFW_RELEASE) {
         glfwSetWindowShouldClose(windowp, true);
       }
+      if (key == GLFW_KEY_H && action == GLFW_RELEASE) {
+        hudVisible = !hudVisible;
+      }
+      if (key == GLFW_KEY_T && action == GLFW_RELEASE) {
+        toggleTrace();
+      }
+      if (key == GLFW_KEY_D && action == GLFW_RELEASE && baseline != null) {
+        colorByDelta = !colorByDelta;
+        visualizer.setBaseline(colorByDelta ? baseline : null);
+      }
     });
+    // The path under the cursor follows the mouse; exposed or resized windows need their content again
+    glfwSetCursorPosCallback(window, (windowp, x, y) -> redrawRequested = true);
+    glfwSetMouseButtonCallback(window, (windowp, button, action, mods) -> redrawRequested = true);
+    glfwSetWindowRefreshCallback(window, windowp -> redrawRequested = true);
 
     // Get the thread stack and push a new frame
     try (MemoryStack stack = stackPush()) {
@@ -137,6 +198,7 @@ public class MainClass {
 
     // Make the window visible
     glfwShowWindow(window);
+    windowNanos = System.nanoTime() - LAUNCH_NANOS;
   }
 
   private void loop() {
@@ -150,15 +212,52 @@ public class MainClass {
 
     // Initialize our renderers
     if (renderer == null) {
+      long phaseStart = System.nanoTime();
       VectorFont font = new VectorFont("/font/arial.ttf");
       textRenderer = new TextRenderer(font);
-      renderer = new MultiPartialDiskRenderer();
-      renderer.init(32);  // 32 slices
+      fontNanos = System.nanoTime() - phaseStart;
+      phaseStart = System.nanoTime();
+      diskRenderer = new MultiPartialDiskRenderer();
+      // -Djtreepie.programCache=false measures a cold start without deleting the cache
+      if (!"false".equals(System.getProperty("jtreepie.programCache"))) {
+        diskRenderer.setProgramCache(Paths.get(System.getProperty("user.home"), ".jtreepie", "programs"));
+      }
+      timedRenderer = new TimedRenderer(diskRenderer, frameTimings);
+      renderer = timedRenderer;
+      renderer.init(32);  // 32 slices at most, fewer for wedges that are short on screen
+      rendererNanos = System.nanoTime() - phaseStart;
       visualizer = new SunburstFolderSizeVisualizer(renderer);
+      try (MemoryStack stack = stackPush()) {
+        IntBuffer pWidth = stack.mallocInt(1);
+        IntBuffer pHeight = stack.mallocInt(1);
+        glfwGetFramebufferSize(window, pWidth, pHeight);
+        visualizer.setViewportSize(pWidth.get(0), pHeight.get(0));
+      }
+      // Bounded by the screen, whatever the size of the tree
+      visualizer.setInstanceBudget(50_000);
       // test calculate size
       String rootPath = "C:\\"; // Replace with your desired path
       calculator = new ConcurrentHierarchicalFolderSizeCalculator();
-      calculator.startCalculation(rootPath);
+      calculator.setSnapshotFile(snapshotFileFor(rootPath));
+      if (Files.exists(snapshotFileFor(rootPath))) {
+        try {
+          // Stays mapped after this scan writes its own snapshot over it
+          baseline = calculator.loadSnapshot(snapshotFileFor(rootPath));
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      calculator.setExtensionTotals(true);
+      try {
+        // Scan throughput for jconsole / VisualVM
+        calculator.registerMXBean();
+      } catch (JMException e) {
+        e.printStackTrace();
+      }
+      session = calculator.startCalculation(rootPath);
+      // Wakes the render loop below, which otherwise waits for input; glfwPostEmptyEvent may be called from any thread
+      visualizer.setFrameListener(GLFW::glfwPostEmptyEvent);
+      visualizer.startLayoutThread(calculator, 0.0f, 0.0f, 0.1f);
     }
 
     // Set the clear color
@@ -167,16 +266,26 @@ public class MainClass {
     // Run the rendering loop until the user has attempted to close
     // the window or has pressed the ESCAPE key.
     while (!glfwWindowShouldClose(window)) {
+      // Picks up the layout thread's newest frame, if any; the tree itself is never walked here
+      frameTimings.beginFrame();
+      long presentStart = System.nanoTime();
+      boolean newFrame = visualizer.present();
+      if (newFrame) {
+        frameTimings.record(FrameTimings.Phase.LAYOUT, visualizer.getPresentedLayoutNanos());
+        // The upload inside present() is timed by the renderer itself
+        frameTimings.record(FrameTimings.Phase.PACK,
+            System.nanoTime() - presentStart - frameTimings.recorded(FrameTimings.Phase.UPLOAD));
+      }
+      boolean statsDue = !statsFinal && System.nanoTime() - statsRefreshNanos > STATS_INTERVAL_NANOS;
+      if (!continuousRendering && !newFrame && !redrawRequested && !statsDue) {
+        // Nothing to draw: sleep until input, a window change or the layout thread's next frame
+        glfwWaitEventsTimeout(IDLE_WAIT_SECONDS);
+        continue;
+      }
+      redrawRequested = false;
       glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); // clear the framebuffer
 
-      //
-      FolderInfo rootInfo = calculator.getRootFolderInfo();
-      renderer.cleanInstances();
-      visualizer.visualize(rootInfo, 0.0f, 0.0f, 0.1f);
-
       // retrieve the path from the mouse coordinates
-      // Update instance data
-      renderer.updateInstanceData();
       float[] xy = getOpenGLMousePosition(window);
       String path = visualizer.findPathFromCoordinate(xy[0], xy[1]);
 
@@ -186,6 +295,8 @@ public class MainClass {
       if (path != null && !path.equals(currentPath)) {
         FolderInfo folderInfo = calculator.getFolderInfo(path);
         currentPath = path;
+        // Finish the area under the cursor first
+        calculator.prioritize(path);
 //        currentSize = folderInfo.getSize();
 //        System.out.println(
 //            "Mouse at: " + xy[0] + ", " + xy[1] + " Path: " + path + " Size: " + formatSize(currentSize));
@@ -193,10 +304,26 @@ public class MainClass {
       // Render the partial disks
       renderer.render();
 
+      long textStart = System.nanoTime();
       textRenderer.drawText2D(currentPath, xy[2], 600-xy[3], 10f,new Vector2f(-1,-1),TextRenderer.TextBoundType.BASELINE, new Vector4f(0,0,0,1));
+      drawStats();
+      if (hudVisible) {
+        drawHud();
+      }
+      timedRenderer.getGpuTimer().begin(FrameTimings.Phase.GPU_TEXT);
       textRenderer.render();
+      timedRenderer.getGpuTimer().end();
+      frameTimings.record(FrameTimings.Phase.TEXT, System.nanoTime() - textStart);
 
+      long swapStart = System.nanoTime();
       glfwSwapBuffers(window); // swap the color buffers
+      frameTimings.record(FrameTimings.Phase.SWAP, System.nanoTime() - swapStart);
+      timedRenderer.getGpuTimer().endFrame();
+      frameTimings.endFrame();
+      if (!firstFrameReported) {
+        firstFrameReported = true;
+        reportFirstFrame();
+      }
 
       // Poll for window events. The key callback above will only be
       // invoked during this call.
@@ -204,8 +331,24 @@ public class MainClass {
     }
 
     // Cleanup
-    renderer.cleanup();
-    calculator.stop();
+    visualizer.cleanup();
+    calculator.shutdown();
+    frameTimings.stopTrace();
+  }
+
+  private void reportFirstFrame() {
+    long sinceMain = (System.nanoTime() - LAUNCH_NANOS) / 1_000_000;
+    long sinceStart = -1;
+    try {
+      sinceStart = ManagementFactory.getRuntimeMXBean().getUptime();
+    } catch (RuntimeException | Error e) {
+      // Not every native image carries the management beans
+    }
+    String programs = diskRenderer.getProgramCacheHits() > 0 ? "cached"
+        : diskRenderer.getProgramCacheMisses() > 0 ? "compiled, cache miss" : "compiled, no cache";
+    System.out.println("First frame " + sinceMain + " ms after main" + (sinceStart >= 0 ? ", " + sinceStart + " ms after start" : "")
+        + " (window " + windowNanos / 1_000_000 + " ms, font " + fontNanos / 1_000_000 + " ms, renderer "
+        + rendererNanos / 1_000_000 + " ms, shader program " + programs + ")");
   }
 
   private void openPathIfMousePressed(String path) {
@@ -219,6 +362,68 @@ public class MainClass {
     }
   }
 
+  // Percentiles over the last frames drawn, top right; refreshed twice a second so it stays readable
+  private void drawHud() {
+    long now = System.nanoTime();
+    if (now - hudRefreshNanos > STATS_INTERVAL_NANOS) {
+      hudRefreshNanos = now;
+      hudLines.clear();
+      hudLines.addAll(frameTimings.summary());
+      hudLines.add("vertices " + diskRenderer.getSubmittedVertices());
+      hudLines.add("gpu results dropped " + timedRenderer.getGpuTimer().getDropped()
+          + (frameTimings.isTracing() ? ", tracing" : ""));
+    }
+    for (int line = 0; line < hudLines.size(); line++) {
+      textRenderer.drawText2D(hudLines.get(line), 560, 600 - 16 - line * 13, 10f, new Vector2f(-1, -1),
+          TextRenderer.TextBoundType.BASELINE, new Vector4f(0.6f, 0f, 0f, 1));
+    }
+  }
+
+  private void toggleTrace() {
+    if (frameTimings.isTracing()) {
+      frameTimings.stopTrace();
+      return;
+    }
+    Path file = Paths.get(System.getProperty("user.home"), ".jtreepie", "frames-" + System.currentTimeMillis() + ".csv");
+    try {
+      frameTimings.startTrace(file);
+      System.out.println("Tracing frame timings to " + file);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void drawStats() {
+    long now = System.nanoTime();
+    if (!statsFinal && now - statsRefreshNanos > STATS_INTERVAL_NANOS) {
+      statsRefreshNanos = now;
+      // Read before the statistics, so a scan ending meanwhile still gets one more refresh
+      statsFinal = session.isDone();
+      statsLines.clear();
+      statsLines.add("Largest files");
+      List<ConcurrentHierarchicalFolderSizeCalculator.LargeFile> files = calculator.getLargestFiles();
+      for (ConcurrentHierarchicalFolderSizeCalculator.LargeFile file : files.subList(0, Math.min(8, files.size()))) {
+        statsLines.add(formatSize(file.getSize()) + "  " + file.getPath());
+      }
+      statsLines.add("By extension");
+      List<ConcurrentHierarchicalFolderSizeCalculator.ExtensionTotal> extensions = calculator.getExtensionTotals();
+      for (ConcurrentHierarchicalFolderSizeCalculator.ExtensionTotal extension : extensions.subList(0, Math.min(5, extensions.size()))) {
+        String name = extension.getExtension().isEmpty() ? "(none)" : "." + extension.getExtension();
+        statsLines.add(formatSize(extension.getBytes()) + "  " + name + "  " + extension.getFiles() + " files");
+      }
+    }
+    for (int line = 0; line < statsLines.size(); line++) {
+      textRenderer.drawText2D(statsLines.get(line), 8, 600 - 16 - line * 13, 10f, new Vector2f(-1, -1),
+          TextRenderer.TextBoundType.BASELINE, new Vector4f(0.2f, 0.2f, 0.2f, 1));
+    }
+  }
+
+  // Last completed scan of rootPath, shown instantly on the next launch
+  private static Path snapshotFileFor(String rootPath) {
+    return Paths.get(System.getProperty("user.home"), ".jtreepie",
+        "scan-" + Integer.toHexString(rootPath.hashCode()) + ".snapshot");
+  }
+
   private String formatSize(long size) {
     if (size >= 1_000_000_000) {
       return String.format("%.2f GB", size / 1_000_000_000.0);
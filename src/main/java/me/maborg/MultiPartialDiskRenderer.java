@@ -4,52 +4,131 @@ import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.*;
 
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Path;
 
 public class MultiPartialDiskRenderer implements IMultiPartialDiskRenderer {
-  private int vaoId;
+  private static final String VERTEX_SHADER =
+      "#version 330 core\n" +
+          "layout (location = 0) in vec2 aPos;\n" +
+          "layout (location = 1) in vec4 aInstance;\n" +
+          "layout (location = 2) in vec2 aRadius;\n" +
+          "layout (location = 3) in vec4 aColor;\n" +
+          "out vec4 vertexColor;\n" +
+          "void main()\n" +
+          "{\n" +
+          "    float startAngle = radians(aInstance.z);\n" +
+          "    float sweepAngle = radians(aInstance.w);\n" +
+          "    float t = aPos.x;\n" +
+          "    float angle = startAngle + t * sweepAngle;\n" +
+          "    float radius = mix(aRadius.x, aRadius.y, aPos.y);\n" +
+          "    vec2 position = vec2(cos(angle), sin(angle)) * radius + aInstance.xy;\n" +
+          "    gl_Position = vec4(position, 0.0, 1.0);\n" +
+          "    vertexColor = aColor;\n" +
+          "}\n";
+  private static final String FRAGMENT_SHADER =
+      "#version 330 core\n" +
+          "in vec4 vertexColor;\n" +
+          "out vec4 FragColor;\n" +
+          "void main()\n" +
+          "{\n" +
+          "    FragColor = vertexColor;\n" +
+          "}\n";
+
   private int vboId;
-  private int instanceVboId;
-  private int vertexCount;
-  private List<PartialDiskInstance> instances;
+  private final boolean persistentMapping;
+  // One instanced draw per tessellation level: its own VAO, instance buffer and range of the shared strip
+  private int[] sliceCounts;
+  private int[] firstVertices;
+  private int[] vaoIds;
+  // add() writes straight into them, nothing is allocated on the Java heap per frame
+  private InstanceBuffer[] instanceBuffers;
+  private int[] uploadedInstances;
+  private float pixelsPerUnit = 300f;
+  private long submittedVertices;
   private int shaderProgramId;
+  private ProgramCache programCache;
 
   public MultiPartialDiskRenderer() {
-    instances = new ArrayList<>();
+    this(true);
+  }
+
+  // persistentMapping is only honoured where GL 4.4 is available
+  public MultiPartialDiskRenderer(boolean persistentMapping) {
+    this.persistentMapping = persistentMapping;
+  }
+
+  // Reuses the linked program of an earlier launch; set before init()
+  public void setProgramCache(Path directory) {
+    programCache = new ProgramCache(directory);
+  }
+
+  // Programs taken from the cache and compiled instead, for the startup report
+  public int getProgramCacheHits() {
+    return programCache == null ? 0 : programCache.getHits();
+  }
+
+  public int getProgramCacheMisses() {
+    return programCache == null ? 0 : programCache.getMisses();
   }
 
+  // slices is the finest level, used by wedges whose outer arc is long on screen
   @Override
   public void init(int slices) {
-    // Generate vertices
-    float[] vertices = generatePartialDiskVertices(slices);
-    vertexCount = vertices.length / 2;
-
-    // Create VAO
-    vaoId = GL30.glGenVertexArrays();
-    GL30.glBindVertexArray(vaoId);
+    // Generate vertices, every level's strip one after the other
+    sliceCounts = PartialDiskLod.sliceCounts(slices);
+    int levels = sliceCounts.length;
+    firstVertices = new int[levels];
+    int totalVertices = 0;
+    for (int level = 0; level < levels; level++) {
+      firstVertices[level] = totalVertices;
+      totalVertices += PartialDiskLod.vertexCount(sliceCounts[level]);
+    }
+    FloatBuffer vertexBuffer = BufferUtils.createFloatBuffer(totalVertices * 2);
+    for (int sliceCount : sliceCounts) {
+      vertexBuffer.put(generatePartialDiskVertices(sliceCount));
+    }
+    vertexBuffer.flip();
 
     // Create VBO for vertex data
     vboId = GL15.glGenBuffers();
     GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
-
-    FloatBuffer vertexBuffer = BufferUtils.createFloatBuffer(vertices.length);
-    vertexBuffer.put(vertices).flip();
-
     GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexBuffer, GL15.GL_STATIC_DRAW);
+    GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
 
-    // Define vertex attributes
-    GL20.glVertexAttribPointer(0, 2, GL11.GL_FLOAT, false, 0, 0);
-    GL20.glEnableVertexAttribArray(0);
+    vaoIds = new int[levels];
+    instanceBuffers = new InstanceBuffer[levels];
+    uploadedInstances = new int[levels];
+    for (int level = 0; level < levels; level++) {
+      // Create VAO
+      vaoIds[level] = GL30.glGenVertexArrays();
+      GL30.glBindVertexArray(vaoIds[level]);
+
+      // Define vertex attributes
+      GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+      GL20.glVertexAttribPointer(0, 2, GL11.GL_FLOAT, false, 0, 0);
+      GL20.glEnableVertexAttribArray(0);
+
+      // Unbind VBO and VAO
+      GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+      GL30.glBindVertexArray(0);
+
+      // Instance data, its attributes are bound once the first upload has created the buffer object
+      instanceBuffers[level] = new InstanceBuffer(persistentMapping);
+    }
 
-    // Create VBO for instance data
-    instanceVboId = GL15.glGenBuffers();
-    GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, instanceVboId);
+    // Create and compile shaders
+    createShaders();
+  }
+
+  // Again whenever the level's instance buffer object is replaced
+  private void bindInstanceAttributes(int level) {
+    GL30.glBindVertexArray(vaoIds[level]);
+    GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, instanceBuffers[level].getBufferId());
 
     // Define instance attributes
-    GL20.glVertexAttribPointer(1, 4, GL11.GL_FLOAT, false, 40, 0);  // position and angles
-    GL20.glVertexAttribPointer(2, 2, GL11.GL_FLOAT, false, 40, 16); // inner and outer radius
-    GL20.glVertexAttribPointer(3, 4, GL11.GL_FLOAT, false, 40, 24); // color
+    GL20.glVertexAttribPointer(1, 4, GL11.GL_FLOAT, false, InstanceBuffer.BYTES_PER_INSTANCE, 0);  // position and angles
+    GL20.glVertexAttribPointer(2, 2, GL11.GL_FLOAT, false, InstanceBuffer.BYTES_PER_INSTANCE, 16); // inner and outer radius
+    GL20.glVertexAttribPointer(3, 4, GL11.GL_FLOAT, false, InstanceBuffer.BYTES_PER_INSTANCE, 24); // color
     GL20.glEnableVertexAttribArray(1);
     GL20.glEnableVertexAttribArray(2);
     GL20.glEnableVertexAttribArray(3);
@@ -58,125 +137,116 @@ public class MultiPartialDiskRenderer implements IMultiPartialDiskRenderer {
     GL33.glVertexAttribDivisor(2, 1);
     GL33.glVertexAttribDivisor(3, 1);
 
-    // Unbind VBO and VAO
     GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
     GL30.glBindVertexArray(0);
-
-    // Create and compile shaders
-    createShaders();
   }
 
   private void createShaders() {
+    String sources = VERTEX_SHADER + FRAGMENT_SHADER;
+    if (programCache != null) {
+      shaderProgramId = programCache.load(sources);
+      if (shaderProgramId != 0) {
+        return;
+      }
+    }
+
     // Vertex Shader
     int vertexShaderId = GL20.glCreateShader(GL20.GL_VERTEX_SHADER);
-    GL20.glShaderSource(vertexShaderId,
-        "#version 330 core\n" +
-            "layout (location = 0) in vec2 aPos;\n" +
-            "layout (location = 1) in vec4 aInstance;\n" +
-            "layout (location = 2) in vec2 aRadius;\n" +
-            "layout (location = 3) in vec4 aColor;\n" +
-            "out vec4 vertexColor;\n" +
-            "void main()\n" +
-            "{\n" +
-            "    float startAngle = radians(aInstance.z);\n" +
-            "    float sweepAngle = radians(aInstance.w);\n" +
-            "    float t = aPos.x;\n" +
-            "    float angle = startAngle + t * sweepAngle;\n" +
-            "    float radius = mix(aRadius.x, aRadius.y, aPos.y);\n" +
-            "    vec2 position = vec2(cos(angle), sin(angle)) * radius + aInstance.xy;\n" +
-            "    gl_Position = vec4(position, 0.0, 1.0);\n" +
-            "    vertexColor = aColor;\n" +
-            "}\n"
-    );
+    GL20.glShaderSource(vertexShaderId, VERTEX_SHADER);
     GL20.glCompileShader(vertexShaderId);
 
     // Fragment Shader
     int fragmentShaderId = GL20.glCreateShader(GL20.GL_FRAGMENT_SHADER);
-    GL20.glShaderSource(fragmentShaderId,
-        "#version 330 core\n" +
-            "in vec4 vertexColor;\n" +
-            "out vec4 FragColor;\n" +
-            "void main()\n" +
-            "{\n" +
-            "    FragColor = vertexColor;\n" +
-            "}\n"
-    );
+    GL20.glShaderSource(fragmentShaderId, FRAGMENT_SHADER);
     GL20.glCompileShader(fragmentShaderId);
 
     // Link shaders
     shaderProgramId = GL20.glCreateProgram();
     GL20.glAttachShader(shaderProgramId, vertexShaderId);
     GL20.glAttachShader(shaderProgramId, fragmentShaderId);
+    if (programCache != null) {
+      programCache.prepare(shaderProgramId);
+    }
     GL20.glLinkProgram(shaderProgramId);
+    if (programCache != null) {
+      programCache.store(sources, shaderProgramId);
+    }
 
     // Clean up
     GL20.glDeleteShader(vertexShaderId);
     GL20.glDeleteShader(fragmentShaderId);
   }
 
+  @Override
+  public void setViewportSize(int width, int height) {
+    pixelsPerUnit = PartialDiskLod.pixelsPerUnit(width, height);
+  }
+
   @Override
   public void add(float centerX, float centerY, float startAngle, float sweepAngle, float innerRadius,
       float outerRadius, float r, float g, float b, float a) {
-    instances.add(new PartialDiskInstance(centerX, centerY, startAngle, sweepAngle, innerRadius, outerRadius, r, g, b, a));
+    int level = PartialDiskLod.level(sliceCounts, sweepAngle, outerRadius, pixelsPerUnit);
+    instanceBuffers[level].add(centerX, centerY, startAngle, sweepAngle, innerRadius, outerRadius, r, g, b, a);
   }
 
   @Override
   public void cleanInstances() {
-    instances.clear();
+    for (InstanceBuffer instanceBuffer : instanceBuffers) {
+      instanceBuffer.clear();
+    }
   }
 
   @Override
   public void updateInstanceData() {
-    if (instances.isEmpty()) {
-      return;
-    }
-
-    float[] instanceData = new float[instances.size() * 10];
-    int index = 0;
-    for (PartialDiskInstance instance : instances) {
-      instanceData[index++] = instance.centerX;
-      instanceData[index++] = instance.centerY;
-      instanceData[index++] = instance.startAngle;
-      instanceData[index++] = instance.sweepAngle;
-      instanceData[index++] = instance.innerRadius;
-      instanceData[index++] = instance.outerRadius;
-      instanceData[index++] = instance.r;
-      instanceData[index++] = instance.g;
-      instanceData[index++] = instance.b;
-      instanceData[index++] = instance.a;
+    for (int level = 0; level < instanceBuffers.length; level++) {
+      if (instanceBuffers[level].upload()) {
+        bindInstanceAttributes(level);
+      }
+      uploadedInstances[level] = instanceBuffers[level].size();
     }
-
-    GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, instanceVboId);
-    FloatBuffer instanceBuffer = BufferUtils.createFloatBuffer(instanceData.length);
-    instanceBuffer.put(instanceData).flip();
-    GL15.glBufferData(GL15.GL_ARRAY_BUFFER, instanceBuffer, GL15.GL_DYNAMIC_DRAW);
-    GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
   }
 
   @Override
   public void render() {
-    if (instances.isEmpty()) {
-      return;
-    }
-
+    submittedVertices = 0;
     GL20.glUseProgram(shaderProgramId);
-    GL30.glBindVertexArray(vaoId);
-    GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_STRIP, 0, vertexCount, instances.size());
+    for (int level = 0; level < vaoIds.length; level++) {
+      if (uploadedInstances[level] == 0) {
+        continue;
+      }
+      int vertexCount = PartialDiskLod.vertexCount(sliceCounts[level]);
+      GL30.glBindVertexArray(vaoIds[level]);
+      int baseInstance = instanceBuffers[level].getBaseInstance();
+      if (baseInstance == 0) {
+        GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_STRIP, firstVertices[level], vertexCount, uploadedInstances[level]);
+      } else {
+        // Only a persistently mapped buffer has regions past the first, and it needs GL 4.4
+        GL42.glDrawArraysInstancedBaseInstance(GL11.GL_TRIANGLE_STRIP, firstVertices[level], vertexCount,
+            uploadedInstances[level], baseInstance);
+      }
+      instanceBuffers[level].drawn();
+      submittedVertices += (long) vertexCount * uploadedInstances[level];
+    }
     GL30.glBindVertexArray(0);
     GL20.glUseProgram(0);
   }
 
+  // Vertices the last render() submitted, over all levels
+  public long getSubmittedVertices() {
+    return submittedVertices;
+  }
+
   @Override
   public void cleanup() {
-    GL20.glDisableVertexAttribArray(0);
-    GL20.glDisableVertexAttribArray(1);
-    GL20.glDisableVertexAttribArray(2);
-    GL20.glDisableVertexAttribArray(3);
     GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
     GL15.glDeleteBuffers(vboId);
-    GL15.glDeleteBuffers(instanceVboId);
+    for (InstanceBuffer instanceBuffer : instanceBuffers) {
+      instanceBuffer.free();
+    }
     GL30.glBindVertexArray(0);
-    GL30.glDeleteVertexArrays(vaoId);
+    for (int vaoId : vaoIds) {
+      GL30.glDeleteVertexArrays(vaoId);
+    }
     GL20.glDeleteProgram(shaderProgramId);
   }
 
@@ -198,22 +268,4 @@ public class MultiPartialDiskRenderer implements IMultiPartialDiskRenderer {
 
     return vertices;
   }
-
-  private static class PartialDiskInstance {
-    float centerX, centerY, startAngle, sweepAngle, innerRadius, outerRadius, r, g, b, a;
-
-    PartialDiskInstance(float centerX, float centerY, float startAngle, float sweepAngle, float innerRadius,
-        float outerRadius, float r, float g, float b, float a) {
-      this.centerX = centerX;
-      this.centerY = centerY;
-      this.startAngle = startAngle;
-      this.sweepAngle = sweepAngle;
-      this.innerRadius = innerRadius;
-      this.outerRadius = outerRadius;
-      this.r = r;
-      this.g = g;
-      this.b = b;
-      this.a = a;
-    }
-  }
-}
\ No newline at end of file
+}
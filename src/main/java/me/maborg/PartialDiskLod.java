@@ -0,0 +1,51 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.util.Arrays;
+
+// Tessellation levels of a partial disk strip. Level i has sliceCounts[i] slices: powers of two up to
+// the slice count given to init, which is always the finest level.
+class PartialDiskLod {
+  // Largest distance, in pixels, between the true outer arc and its chords
+  static final float TOLERANCE_PIXELS = 0.5f;
+
+  private PartialDiskLod() {
+  }
+
+  static int[] sliceCounts(int maxSlices) {
+    if (maxSlices < 1) {
+      throw new IllegalArgumentException("At least one slice is needed");
+    }
+    int[] sliceCounts = new int[32];
+    int levels = 0;
+    for (int slices = 1; slices < maxSlices; slices <<= 1) {
+      sliceCounts[levels++] = slices;
+    }
+    sliceCounts[levels++] = maxSlices;
+    return Arrays.copyOf(sliceCounts, levels);
+  }
+
+  // Clip space spans two units across the smaller side of the viewport
+  static float pixelsPerUnit(int width, int height) {
+    return Math.min(width, height) / 2f;
+  }
+
+  static int vertexCount(int slices) {
+    return (slices + 1) * 2;
+  }
+
+  // Fewest slices whose chords stay within the tolerance of the outer arc, so the vertex count grows
+  // with the visible arc length: a chord of angle a on radius R deviates R * (1 - cos(a / 2)) ~ R * a^2 / 8
+  static int level(int[] sliceCounts, float sweepAngle, float outerRadius, float pixelsPerUnit) {
+    double outerRadiusPixels = Math.abs(outerRadius) * pixelsPerUnit;
+    double slicesNeeded = Math.toRadians(Math.abs(sweepAngle)) * Math.sqrt(outerRadiusPixels / (8 * TOLERANCE_PIXELS));
+    for (int level = 0; level < sliceCounts.length; level++) {
+      if (sliceCounts[level] >= slicesNeeded) {
+        return level;
+      }
+    }
+    return sliceCounts.length - 1;
+  }
+}
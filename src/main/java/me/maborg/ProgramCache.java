@@ -0,0 +1,147 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Linked shader programs kept on disk as driver binaries (GL 4.1 / ARB_get_program_binary), so a later launch
+// skips compiling and linking. A binary is only taken back by the same vendor, renderer and driver version
+// for the same sources; anything else, or a binary the driver rejects, falls back to compiling.
+class ProgramCache {
+  private static final int MAGIC = 0x4A545042; // "JTPB"
+
+  private final Path directory;
+  private int hits;
+  private int misses;
+
+  ProgramCache(Path directory) {
+    this.directory = directory;
+  }
+
+  // Needs the context current. Retrieving binaries is optional and some drivers offer no binary format at all.
+  private static boolean supported() {
+    return (GL.getCapabilities().OpenGL41 || GL.getCapabilities().GL_ARB_get_program_binary)
+        && GL11.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+  }
+
+  // The driver identity plus the sources: a driver update or an edited shader is a miss, never a bad program
+  private static String key(String sources) {
+    return GL11.glGetString(GL11.GL_VENDOR) + '\n' + GL11.glGetString(GL11.GL_RENDERER) + '\n'
+        + GL11.glGetString(GL11.GL_VERSION) + '\n' + sources;
+  }
+
+  private Path fileFor(String key) {
+    return directory.resolve("program-" + Integer.toHexString(key.hashCode()) + ".bin");
+  }
+
+  // A linked program from an earlier launch, or 0 when there is none for this driver
+  int load(String sources) {
+    if (!supported()) {
+      misses++;
+      return 0;
+    }
+    String key = key(sources);
+    ByteBuffer binary = null;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fileFor(key))))) {
+      if (in.readInt() != MAGIC || !in.readUTF().equals(key)) {
+        misses++;
+        return 0;
+      }
+      int format = in.readInt();
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      binary = memAlloc(bytes.length);
+      binary.put(bytes).flip();
+      int program = GL20.glCreateProgram();
+      GL41.glProgramBinary(program, format, binary);
+      if (GL20.glGetProgrami(program, GL20.GL_LINK_STATUS) == GL11.GL_TRUE) {
+        hits++;
+        return program;
+      }
+      GL20.glDeleteProgram(program);
+    } catch (NoSuchFileException e) {
+      // First launch on this driver
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (binary != null) {
+        memFree(binary);
+      }
+    }
+    misses++;
+    return 0;
+  }
+
+  // Before linking a program that store() will be asked to keep
+  void prepare(int program) {
+    if (supported()) {
+      GL41.glProgramParameteri(program, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+    }
+  }
+
+  // Writes the linked program's binary; a failure only costs the next launch a compile
+  void store(String sources, int program) {
+    if (!supported() || GL20.glGetProgrami(program, GL20.GL_LINK_STATUS) != GL11.GL_TRUE) {
+      return;
+    }
+    int length = GL20.glGetProgrami(program, GL41.GL_PROGRAM_BINARY_LENGTH);
+    if (length <= 0) {
+      return;
+    }
+    String key = key(sources);
+    ByteBuffer binary = memAlloc(length);
+    try (MemoryStack stack = MemoryStack.stackPush()) {
+      IntBuffer format = stack.mallocInt(1);
+      GL41.glGetProgramBinary(program, null, format, binary);
+      byte[] bytes = new byte[binary.remaining()];
+      binary.get(bytes);
+      Files.createDirectories(directory);
+      Path file = fileFor(key);
+      Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+      try {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+          out.writeInt(MAGIC);
+          out.writeUTF(key);
+          out.writeInt(format.get(0));
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      memFree(binary);
+    }
+  }
+
+  int getHits() {
+    return hits;
+  }
+
+  int getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,66 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.util.Arrays;
+
+// Drawn wedges per ring, in increasing start angle, answered by binary search.
+// Filled once per layout and not changed while a frame that shows it may be hit tested.
+class RingIndex {
+    private float[][] starts = new float[0][];
+    private float[][] ends = new float[0][];
+    private String[][] paths = new String[0][];
+    private int[] counts = new int[0];
+
+    // Keeps the arrays for the next layout
+    void clear() {
+        Arrays.fill(counts, 0);
+    }
+
+    // Wedges of a ring must be added in increasing start angle, as a depth first walk does
+    void add(int level, float startAngle, float sweepAngle, String path) {
+        if (level >= counts.length) {
+            // Levels may be skipped, every new one gets its arrays
+            int previousLevels = counts.length;
+            starts = Arrays.copyOf(starts, level + 1);
+            ends = Arrays.copyOf(ends, level + 1);
+            paths = Arrays.copyOf(paths, level + 1);
+            counts = Arrays.copyOf(counts, level + 1);
+            for (int i = previousLevels; i < counts.length; i++) {
+                starts[i] = new float[16];
+                ends[i] = new float[16];
+                paths[i] = new String[16];
+            }
+        }
+        int count = counts[level];
+        if (count == starts[level].length) {
+            starts[level] = Arrays.copyOf(starts[level], count * 2);
+            ends[level] = Arrays.copyOf(ends[level], count * 2);
+            paths[level] = Arrays.copyOf(paths[level], count * 2);
+        }
+        starts[level][count] = startAngle;
+        ends[level][count] = startAngle + sweepAngle;
+        paths[level][count] = path;
+        counts[level] = count + 1;
+    }
+
+    String find(int level, float angle) {
+        if (level < 0 || level >= counts.length) {
+            return null;
+        }
+        float[] ringStarts = starts[level];
+        // Last wedge starting at or before the angle
+        int low = 0;
+        int high = counts[level] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ringStarts[middle] <= angle) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high >= 0 && angle < ends[level][high] ? paths[level][high] : null;
+    }
+}
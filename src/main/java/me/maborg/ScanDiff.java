@@ -0,0 +1,175 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static me.maborg.ConcurrentHierarchicalFolderSizeCalculator.FolderInfo;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Compares two scans of the same root, live or loaded from a snapshot. The subfolders of each matched pair are
+// merged by name, in the order a snapshot already stores them and sorted per folder for a live tree, so only the
+// folders along the current path and their siblings are held, never either whole tree.
+class ScanDiff {
+    interface DeltaListener {
+        // A folder whose size differs; before is 0 for an added folder, after is 0 for a removed one.
+        // The root is level 0.
+        void delta(String path, int level, long before, long after);
+    }
+
+    private static final Comparator<Entry> BY_NAME = Comparator.comparing(entry -> entry.name);
+
+    private final int top;
+    private final int maxLevel;
+    private final DeltaListener listener;
+    // Smallest growth kept at the head
+    private final PriorityQueue<Grower> growers;
+    private String separator = "/";
+
+    // Reports folders down to maxLevel to the listener, which may be null, and keeps the top largest growers
+    ScanDiff(int top, int maxLevel, DeltaListener listener) {
+        this.top = top;
+        this.maxLevel = maxLevel;
+        this.listener = listener;
+        growers = new PriorityQueue<>(top + 1, Comparator.comparingLong(Grower::getDelta));
+    }
+
+    // Returns how much the whole tree grew. Roots are matched whatever their names.
+    long compare(FolderInfo before, FolderInfo after, String separator) {
+        this.separator = separator;
+        String path = after != null ? after.getPath() : before.getPath();
+        return compare(before, after, path, 0);
+    }
+
+    // Biggest growth first. Bytes are counted where they changed: the own files of a folder found in both scans,
+    // or the whole of a folder that was added or removed, so the deltas add up to the root's.
+    List<Grower> getTopGrowers() {
+        List<Grower> ranked = new ArrayList<>(growers);
+        ranked.sort(Comparator.comparingLong(Grower::getDelta).reversed());
+        return ranked;
+    }
+
+    private long compare(FolderInfo before, FolderInfo after, String path, int level) {
+        long beforeSize = before == null ? 0 : before.getSize();
+        long afterSize = after == null ? 0 : after.getSize();
+        if (beforeSize != afterSize && listener != null && level <= maxLevel) {
+            listener.delta(path, level, beforeSize, afterSize);
+        }
+        if (before == null || after == null) {
+            offer(path, afterSize - beforeSize);
+            if (level >= maxLevel || listener == null) {
+                // Nothing below would be reported and the folder already counts as a whole
+                return afterSize - beforeSize;
+            }
+        } else {
+            offer(path, after.getOwnSize() - before.getOwnSize());
+        }
+        List<Entry> beforeChildren = sortedChildren(before);
+        List<Entry> afterChildren = sortedChildren(after);
+        int b = 0;
+        int a = 0;
+        while (b < beforeChildren.size() || a < afterChildren.size()) {
+            int cmp = b == beforeChildren.size() ? 1
+                : a == afterChildren.size() ? -1
+                : beforeChildren.get(b).name.compareTo(afterChildren.get(a).name);
+            Entry entry = cmp <= 0 ? beforeChildren.get(b) : afterChildren.get(a);
+            StringBuilder childPath = new StringBuilder(path);
+            FolderInfo.appendSegment(childPath, entry.name, separator);
+            if (cmp == 0) {
+                compareChild(beforeChildren.get(b++).folder, afterChildren.get(a++).folder, childPath.toString(), level + 1,
+                    before != null && after != null);
+            } else if (cmp < 0) {
+                compareChild(beforeChildren.get(b++).folder, null, childPath.toString(), level + 1, before != null && after != null);
+            } else {
+                compareChild(null, afterChildren.get(a++).folder, childPath.toString(), level + 1, before != null && after != null);
+            }
+        }
+        return afterSize - beforeSize;
+    }
+
+    // Below an added or removed folder the growth is already counted, only the listener still wants the folders
+    private void compareChild(FolderInfo before, FolderInfo after, String path, int level, boolean ranked) {
+        if (ranked) {
+            compare(before, after, path, level);
+        } else {
+            report(before != null ? before : after, before != null, path, level);
+        }
+    }
+
+    private void report(FolderInfo folder, boolean removed, String path, int level) {
+        long size = folder.getSize();
+        if (size != 0) {
+            listener.delta(path, level, removed ? size : 0, removed ? 0 : size);
+        }
+        if (level >= maxLevel) {
+            return;
+        }
+        for (FolderInfo subfolder : folder.getSubfolders()) {
+            StringBuilder childPath = new StringBuilder(path);
+            FolderInfo.appendSegment(childPath, subfolder.getName(), separator);
+            report(subfolder, removed, childPath.toString(), level + 1);
+        }
+    }
+
+    private void offer(String path, long delta) {
+        if (delta <= 0 || top == 0) {
+            return;
+        }
+        if (growers.size() == top && growers.peek().getDelta() >= delta) {
+            return;
+        }
+        growers.add(new Grower(path, delta));
+        if (growers.size() > top) {
+            growers.poll();
+        }
+    }
+
+    private static List<Entry> sortedChildren(FolderInfo folder) {
+        if (folder == null) {
+            return new ArrayList<>();
+        }
+        List<FolderInfo> subfolders = folder.getSubfolders();
+        List<Entry> children = new ArrayList<>(subfolders.size());
+        boolean sorted = true;
+        for (int i = 0; i < subfolders.size(); i++) {
+            FolderInfo subfolder = subfolders.get(i);
+            Entry entry = new Entry(subfolder.getName(), subfolder);
+            sorted &= children.isEmpty() || children.get(children.size() - 1).name.compareTo(entry.name) <= 0;
+            children.add(entry);
+        }
+        if (!sorted) {
+            children.sort(BY_NAME);
+        }
+        return children;
+    }
+
+    private static class Entry {
+        final String name;
+        final FolderInfo folder;
+
+        Entry(String name, FolderInfo folder) {
+            this.name = name;
+            this.folder = folder;
+        }
+    }
+
+    static class Grower {
+        private final String path;
+        private final long delta;
+
+        Grower(String path, long delta) {
+            this.path = path;
+            this.delta = delta;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getDelta() {
+            return delta;
+        }
+    }
+}
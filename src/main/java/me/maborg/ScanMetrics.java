@@ -0,0 +1,234 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Counters are LongAdders and the latency histogram is a row of them, so workers never
+// contend on a shared cache line; only readers pay for summing the stripes.
+class ScanMetrics implements ScanMetricsMXBean {
+    private final LongAdder foldersListed = new LongAdder();
+    private final LongAdder foldersReused = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder listingErrors = new LongAdder();
+    private final LongAdder foldersExcluded = new LongAdder();
+    // Folder tasks forked and not started yet, and started and not finished yet
+    private final LongAdder foldersQueued = new LongAdder();
+    private final LongAdder foldersBusy = new LongAdder();
+    // Bucket i counts listings that took less than 2^i nanoseconds
+    private final LongAdder[] listingNanos = new LongAdder[64];
+    private final AtomicLong nextProgressNanos = new AtomicLong();
+    private volatile long startNanos = System.nanoTime();
+    private volatile long endNanos;
+    private volatile long lastFolderNanos = System.nanoTime();
+    private volatile boolean scanning;
+    private volatile int workers;
+    private volatile Consumer<ScanMetricsMXBean> progressListener;
+    private volatile long progressIntervalNanos;
+
+    ScanMetrics() {
+        for (int i = 0; i < listingNanos.length; i++) {
+            listingNanos[i] = new LongAdder();
+        }
+    }
+
+    void setProgressListener(Consumer<ScanMetricsMXBean> listener, long interval, TimeUnit unit) {
+        progressIntervalNanos = unit.toNanos(interval);
+        progressListener = listener;
+    }
+
+    void start(int workers) {
+        foldersListed.reset();
+        foldersReused.reset();
+        files.reset();
+        bytes.reset();
+        listingErrors.reset();
+        foldersExcluded.reset();
+        foldersQueued.reset();
+        foldersBusy.reset();
+        for (LongAdder bucket : listingNanos) {
+            bucket.reset();
+        }
+        this.workers = workers;
+        startNanos = System.nanoTime();
+        lastFolderNanos = startNanos;
+        nextProgressNanos.set(startNanos + progressIntervalNanos);
+        scanning = true;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+        scanning = false;
+        Consumer<ScanMetricsMXBean> listener = progressListener;
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    void listed(long nanos, long fileCount, long byteCount) {
+        foldersListed.increment();
+        files.add(fileCount);
+        bytes.add(byteCount);
+        listingNanos[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+        folderDone();
+    }
+
+    void reused(long byteCount) {
+        foldersReused.increment();
+        bytes.add(byteCount);
+        folderDone();
+    }
+
+    void listingError() {
+        listingErrors.increment();
+    }
+
+    void excluded() {
+        foldersExcluded.increment();
+    }
+
+    void foldersQueued(int count) {
+        foldersQueued.add(count);
+    }
+
+    void folderStarted() {
+        foldersQueued.decrement();
+        foldersBusy.increment();
+    }
+
+    void folderFinished() {
+        foldersBusy.decrement();
+    }
+
+    private void folderDone() {
+        long now = System.nanoTime();
+        lastFolderNanos = now;
+        Consumer<ScanMetricsMXBean> listener = progressListener;
+        long next = nextProgressNanos.get();
+        // Whichever worker crosses the interval first reports, the others carry on
+        if (listener != null && now - next >= 0 && nextProgressNanos.compareAndSet(next, now + progressIntervalNanos)) {
+            listener.accept(this);
+        }
+    }
+
+    @Override
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((scanning ? System.nanoTime() : endNanos) - startNanos);
+    }
+
+    @Override
+    public long getMillisSinceLastFolder() {
+        return scanning ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFolderNanos) : 0;
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public int getBusyWorkers() {
+        return (int) Math.max(0, foldersBusy.sum());
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return (int) Math.max(0, foldersQueued.sum());
+    }
+
+    @Override
+    public long getFoldersListed() {
+        return foldersListed.sum();
+    }
+
+    @Override
+    public long getFoldersReused() {
+        return foldersReused.sum();
+    }
+
+    @Override
+    public long getFoldersExcluded() {
+        return foldersExcluded.sum();
+    }
+
+    @Override
+    public long getFiles() {
+        return files.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getListingErrors() {
+        return listingErrors.sum();
+    }
+
+    @Override
+    public double getFoldersPerSecond() {
+        return perSecond(getFoldersListed() + getFoldersReused());
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return perSecond(getBytes());
+    }
+
+    private double perSecond(long count) {
+        long elapsedMillis = getElapsedMillis();
+        return elapsedMillis == 0 ? 0 : count * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public long getListingMicrosP50() {
+        return listingMicros(0.50);
+    }
+
+    @Override
+    public long getListingMicrosP90() {
+        return listingMicros(0.90);
+    }
+
+    @Override
+    public long getListingMicrosP99() {
+        return listingMicros(0.99);
+    }
+
+    @Override
+    public long getListingMicrosMax() {
+        return listingMicros(1.0);
+    }
+
+    private long listingMicros(double quantile) {
+        long[] counts = new long[listingNanos.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = listingNanos[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (i == 63 ? Long.MAX_VALUE : 1L << i) / 1000;
+            }
+        }
+        return 0;
+    }
+}
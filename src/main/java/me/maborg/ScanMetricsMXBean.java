@@ -0,0 +1,49 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+// What the scanner is doing, for JMX consoles and the progress callback.
+// Everything covers the current scan, or the last one once it has finished.
+public interface ScanMetricsMXBean {
+    boolean isScanning();
+
+    long getElapsedMillis();
+
+    // Nothing finished for this long while scanning means a stuck listing or mount
+    long getMillisSinceLastFolder();
+
+    int getWorkers();
+
+    int getBusyWorkers();
+
+    int getQueueDepth();
+
+    long getFoldersListed();
+
+    // Taken over unchanged from the previous result by an incremental scan
+    long getFoldersReused();
+
+    // Pruned by the exclusion rules before being listed
+    long getFoldersExcluded();
+
+    long getFiles();
+
+    long getBytes();
+
+    // Folders or entries that could not be read
+    long getListingErrors();
+
+    double getFoldersPerSecond();
+
+    double getBytesPerSecond();
+
+    // Wall time of one folder listing; buckets are powers of two, so these are upper bounds
+    long getListingMicrosP50();
+
+    long getListingMicrosP90();
+
+    long getListingMicrosP99();
+
+    long getListingMicrosMax();
+}
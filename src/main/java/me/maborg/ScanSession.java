@@ -0,0 +1,79 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// One startCalculation call. Completion is only signalled once every worker of the scan has returned,
+// so awaiting a cancelled session guarantees nothing is still writing into its tree.
+public class ScanSession {
+    private final List<String> rootPaths;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private volatile boolean cancelled;
+
+    ScanSession(List<String> rootPaths) {
+        this.rootPaths = Collections.unmodifiableList(rootPaths);
+    }
+
+    public List<String> getRootPaths() {
+        return rootPaths;
+    }
+
+    // Completes normally once the tree is complete and published, exceptionally with the failure,
+    // or is cancelled when the session was cancelled. Completing it from outside does not stop the scan.
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    // Cooperative: workers finish the folder they are listing and return
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    // Waits for the workers to return, whatever the outcome
+    public void awaitTermination() throws InterruptedException {
+        try {
+            completion.get();
+        } catch (ExecutionException | CancellationException e) {
+            // Terminated all the same
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            completion.get(timeout, unit);
+        } catch (ExecutionException | CancellationException e) {
+            // Terminated all the same
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    void complete() {
+        if (cancelled) {
+            completion.cancel(false);
+        } else {
+            completion.complete(null);
+        }
+    }
+
+    void fail(Throwable failure) {
+        completion.completeExceptionally(failure);
+    }
+}
@@ -0,0 +1,468 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static me.maborg.ConcurrentHierarchicalFolderSizeCalculator.FolderInfo;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+// Read only store over a scan snapshot file, mapped instead of loaded.
+//
+// Layout (big endian):
+//   header  magic, version, folder count, separator char, names offset (long), names length (long)
+//   folders one fixed size record per folder in breadth first order, the root first:
+//           size (long), last modified (long), parent, first child, child count,
+//           name offset, name length, reserved
+//           (version 1 records have no last modified time and are read as never modified)
+//   names   UTF-8 name segments; the root's name is its full path, or empty for a virtual root
+//           over several scanned roots whose names are then their full paths
+// The children of a folder are contiguous and sorted by their UTF-8 name bytes,
+// so a path is resolved with one binary search per segment.
+class SnapshotFolderStore implements FolderView<Integer> {
+    static final int MAGIC = 0x4A545053; // "JTPS"
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 40;
+    private static final int RECORD_SIZE_V1 = 32;
+    private static final String PENDING_SUFFIX = ".pending";
+
+    private final ConcurrentHierarchicalFolderSizeCalculator calculator;
+    private final MappedByteBuffer folders;
+    private final MappedByteBuffer names;
+    private final int count;
+    private final int recordSize;
+    // Field offsets inside a record, depending on the file's version
+    private final int lastModifiedOffset;
+    private final int parentOffset;
+    private final String rootPath;
+    private final String separator;
+
+    private SnapshotFolderStore(ConcurrentHierarchicalFolderSizeCalculator calculator,
+        MappedByteBuffer folders, MappedByteBuffer names, int count, int version, char separator) {
+        this.calculator = calculator;
+        this.folders = folders;
+        this.names = names;
+        this.count = count;
+        this.recordSize = version == 1 ? RECORD_SIZE_V1 : RECORD_SIZE;
+        this.lastModifiedOffset = version == 1 ? -1 : 8;
+        this.parentOffset = version == 1 ? 8 : 16;
+        this.rootPath = count == 0 ? null : nameOf(0);
+        this.separator = separator != 0 ? String.valueOf(separator)
+            : rootPath != null && rootPath.contains("\\") && !rootPath.contains("/") ? "\\" : "/";
+    }
+
+    static SnapshotFolderStore open(ConcurrentHierarchicalFolderSizeCalculator calculator, Path file) throws IOException {
+        promotePending(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Truncated snapshot: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a scan snapshot: " + file);
+            }
+            int version = header.getInt(4);
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            int count = header.getInt(8);
+            long namesOffset = header.getLong(16);
+            long namesLength = header.getLong(24);
+            if (count < 0 || namesOffset < 0 || namesLength < 0) {
+                throw new IOException("Corrupt snapshot header: " + file);
+            }
+            long foldersLength = (long) count * (version == 1 ? RECORD_SIZE_V1 : RECORD_SIZE);
+            if (foldersLength > Integer.MAX_VALUE || namesLength > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + file);
+            }
+            if (HEADER_SIZE + foldersLength > namesOffset || namesOffset + namesLength > channel.size()) {
+                throw new IOException("Truncated snapshot: " + file);
+            }
+            // The mappings stay valid after the channel is closed
+            MappedByteBuffer folders = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, foldersLength);
+            MappedByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, namesOffset, namesLength);
+            checkRecords(folders, count, version, namesLength, file);
+            return new SnapshotFolderStore(calculator, folders, names, count, version, (char) header.getInt(12));
+        }
+    }
+
+    // Every index and range a lookup follows stays inside the file, so a damaged snapshot is refused here
+    // instead of failing on some later read. Records are in breadth first order: parents come before their
+    // children and children after their parent.
+    private static void checkRecords(MappedByteBuffer folders, int count, int version, long namesLength, Path file)
+        throws IOException {
+        int recordSize = version == 1 ? RECORD_SIZE_V1 : RECORD_SIZE;
+        int parentOffset = version == 1 ? 8 : 16;
+        for (int index = 0; index < count; index++) {
+            int record = index * recordSize + parentOffset;
+            int parent = folders.getInt(record);
+            int firstChild = folders.getInt(record + 4);
+            int childCount = folders.getInt(record + 8);
+            int nameOffset = folders.getInt(record + 12);
+            int nameLength = folders.getInt(record + 16);
+            boolean parentValid = index == 0 ? parent == -1 : parent >= 0 && parent < index;
+            boolean childrenValid = childCount == 0
+                || childCount > 0 && firstChild > index && (long) firstChild + childCount <= count;
+            boolean nameValid = nameOffset >= 0 && nameLength >= 0 && (long) nameOffset + nameLength <= namesLength;
+            if (!parentValid || !childrenValid || !nameValid) {
+                throw new IOException("Corrupt snapshot record " + index + ": " + file);
+            }
+        }
+    }
+
+    // Streams the tree below root to file breadth first; only the current frontier is kept on heap
+    static void write(FolderView<?> store, Path file) throws IOException {
+        FolderInfo root = store.getRootFolderInfo();
+        if (root == null) {
+            throw new IllegalStateException("Nothing has been scanned yet");
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        Path namesTemp = Files.createTempFile(parent, file.getFileName().toString(), ".names");
+        try {
+            int count;
+            long namesLength;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_SIZE);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                try (DataOutputStream nameOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(namesTemp), 1 << 16))) {
+                    Deque<PendingRecord> queue = new ArrayDeque<>();
+                    queue.add(new PendingRecord(root, -1, root.getPath()));
+                    int index = 0;
+                    int assigned = 1;
+                    while (!queue.isEmpty()) {
+                        PendingRecord record = queue.poll();
+                        List<PendingRecord> children = sortedChildren(record.folder, index);
+                        int firstChild = assigned;
+                        assigned += children.size();
+                        queue.addAll(children);
+
+                        out.writeLong(record.folder.getSize());
+                        out.writeLong(record.folder.getLastModified());
+                        out.writeInt(record.parent);
+                        out.writeInt(children.isEmpty() ? -1 : firstChild);
+                        out.writeInt(children.size());
+                        out.writeInt(nameOut.size());
+                        out.writeInt(record.name.length);
+                        out.writeInt(0);
+                        nameOut.write(record.name);
+                        index++;
+                    }
+                    count = index;
+                    namesLength = nameOut.size();
+                }
+                out.flush();
+                long namesOffset = channel.position();
+                try (FileChannel namesChannel = FileChannel.open(namesTemp, StandardOpenOption.READ)) {
+                    long transferred = 0;
+                    while (transferred < namesLength) {
+                        transferred += namesChannel.transferTo(transferred, namesLength - transferred, channel);
+                    }
+                }
+                DataOutputStream header = new DataOutputStream(Channels.newOutputStream(channel.position(0)));
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeInt(count);
+                header.writeInt(store.getSeparator().charAt(0));
+                header.writeLong(namesOffset);
+                header.writeLong(namesLength);
+                header.flush();
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException e) {
+                // Windows refuses to replace a file that is still mapped, take it over on the next open
+                Files.move(temp, pendingFile(file), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+            Files.deleteIfExists(namesTemp);
+        }
+    }
+
+    private static List<PendingRecord> sortedChildren(FolderInfo folder, int parentIndex) {
+        List<PendingRecord> children = new ArrayList<>();
+        for (FolderInfo subfolder : folder.getSubfolders()) {
+            children.add(new PendingRecord(subfolder, parentIndex, subfolder.getName()));
+        }
+        children.sort((a, b) -> Arrays.compareUnsigned(a.name, b.name));
+        return children;
+    }
+
+    private static Path pendingFile(Path file) {
+        return file.resolveSibling(file.getFileName() + PENDING_SUFFIX);
+    }
+
+    private static void promotePending(Path file) throws IOException {
+        Path pending = pendingFile(file);
+        if (Files.exists(pending)) {
+            Files.move(pending, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public String getSeparator() {
+        return separator;
+    }
+
+    @Override
+    public Integer getFolder(String path) {
+        int index = find(path);
+        return index < 0 ? null : index;
+    }
+
+    @Override
+    public FolderInfo getRootFolderInfo() {
+        return count == 0 ? null : new Node(0);
+    }
+
+    @Override
+    public FolderInfo getFolderInfo(String path) {
+        int index = find(path);
+        return index < 0 ? null : new Node(index);
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int find(String path) {
+        if (rootPath == null) {
+            return -1;
+        }
+        if (path.equals(rootPath)) {
+            return 0;
+        }
+        int index = -1;
+        int start = 0;
+        if (rootPath.isEmpty()) {
+            // Several scanned roots, the first segment is a whole root path
+            int first = firstChildOf(0);
+            for (int child = first; child < first + childCountOf(0) && index < 0; child++) {
+                String name = nameOf(child);
+                if (FolderInfo.isPathPrefix(name, path, separator)) {
+                    index = child;
+                    start = name.length();
+                }
+            }
+        } else if (FolderInfo.isPathPrefix(rootPath, path, separator)) {
+            index = 0;
+            start = rootPath.length();
+        }
+        while (start < path.length() && index >= 0) {
+            if (path.startsWith(separator, start)) {
+                start += separator.length();
+                continue;
+            }
+            int end = path.indexOf(separator, start);
+            if (end < 0) {
+                end = path.length();
+            }
+            index = findChild(index, path.substring(start, end).getBytes(StandardCharsets.UTF_8));
+            start = end;
+        }
+        return index;
+    }
+
+    private int findChild(int parent, byte[] name) {
+        int low = firstChildOf(parent);
+        int high = low + childCountOf(parent) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareName(int index, byte[] name) {
+        int offset = nameOffsetOf(index);
+        int length = nameLengthOf(index);
+        int common = Math.min(length, name.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(names.get(offset + i) & 0xFF, name[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, name.length);
+    }
+
+    private String nameOf(int index) {
+        int offset = nameOffsetOf(index);
+        byte[] bytes = new byte[nameLengthOf(index)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = names.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String pathOf(int index) {
+        if (index == 0) {
+            return rootPath;
+        }
+        StringBuilder path = new StringBuilder(pathOf(parentOf(index)));
+        FolderInfo.appendSegment(path, nameOf(index), separator);
+        return path.toString();
+    }
+
+    private long sizeOf(int index) {
+        return folders.getLong(index * recordSize);
+    }
+
+    private long lastModifiedOf(int index) {
+        return lastModifiedOffset < 0 ? 0 : folders.getLong(index * recordSize + lastModifiedOffset);
+    }
+
+    private int parentOf(int index) {
+        return folders.getInt(index * recordSize + parentOffset);
+    }
+
+    private int firstChildOf(int index) {
+        return folders.getInt(index * recordSize + parentOffset + 4);
+    }
+
+    private int childCountOf(int index) {
+        return folders.getInt(index * recordSize + parentOffset + 8);
+    }
+
+    private int nameOffsetOf(int index) {
+        return folders.getInt(index * recordSize + parentOffset + 12);
+    }
+
+    private int nameLengthOf(int index) {
+        return folders.getInt(index * recordSize + parentOffset + 16);
+    }
+
+    private static class PendingRecord {
+        final FolderInfo folder;
+        final int parent;
+        final byte[] name;
+
+        PendingRecord(FolderInfo folder, int parent, String name) {
+            this.folder = folder;
+            this.parent = parent;
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private class Node extends FolderInfo {
+        private final int index;
+
+        Node(int index) {
+            super(calculator);
+            this.index = index;
+        }
+
+        @Override
+        public String getPath() {
+            return pathOf(index);
+        }
+
+        @Override
+        public String getName() {
+            return nameOf(index);
+        }
+
+        @Override
+        public FolderInfo getParent() {
+            return index == 0 ? null : new Node(parentOf(index));
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModifiedOf(index);
+        }
+
+        @Override
+        public long getOwnSize() {
+            long ownSize = sizeOf(index);
+            int first = firstChildOf(index);
+            for (int child = first; child < first + childCountOf(index); child++) {
+                ownSize -= sizeOf(child);
+            }
+            return ownSize;
+        }
+
+        @Override
+        public long getSize() {
+            return sizeOf(index);
+        }
+
+        @Override
+        public List<String> getSubfolderPaths() {
+            int first = firstChildOf(index);
+            int childCount = childCountOf(index);
+            List<String> subfolderPaths = new ArrayList<>(childCount);
+            String path = getPath();
+            for (int child = first; child < first + childCount; child++) {
+                StringBuilder subfolderPath = new StringBuilder(path);
+                FolderInfo.appendSegment(subfolderPath, nameOf(child), separator);
+                subfolderPaths.add(subfolderPath.toString());
+            }
+            return subfolderPaths;
+        }
+
+        // Children are contiguous, so this is a view over their range
+        @Override
+        public List<FolderInfo> getSubfolders() {
+            int first = firstChildOf(index);
+            int childCount = childCountOf(index);
+            return new AbstractList<FolderInfo>() {
+                @Override
+                public FolderInfo get(int child) {
+                    if (child < 0 || child >= childCount) {
+                        throw new IndexOutOfBoundsException("Index " + child + ", size " + childCount);
+                    }
+                    return new Node(first + child);
+                }
+
+                @Override
+                public int size() {
+                    return childCount;
+                }
+            };
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Node && ((Node) other).index == index && ((Node) other).store() == SnapshotFolderStore.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        private SnapshotFolderStore store() {
+            return SnapshotFolderStore.this;
+        }
+    }
+}
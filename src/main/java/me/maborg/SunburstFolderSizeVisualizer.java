@@ -5,70 +5,345 @@ package me.maborg;
 
 import static java.lang.Math.abs;
 import static me.maborg.ConcurrentHierarchicalFolderSizeCalculator.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class SunburstFolderSizeVisualizer {
+    private static final long LAYOUT_INTERVAL_NANOS = 16_000_000L;
+    // Budgeted layout: narrower siblings are merged into one "other" wedge per parent
+    private static final float MIN_WEDGE_PIXELS = 2f;
+    private static final float[] OTHER_COLOR = {0.85f, 0.85f, 0.85f};
+    // A retained subtree that lost more than this much of its width is laid out again to merge what became too small
+    private static final float RELAYOUT_SHRINK = 0.9f;
+    // Delta coloring: unchanged folders are grey, growth shades to red and shrinkage to blue
+    private static final float[] UNCHANGED_COLOR = {0.75f, 0.75f, 0.75f};
+    private static final float[] GROWN_COLOR = {0.85f, 0.15f, 0.1f};
+    private static final float[] SHRUNK_COLOR = {0.15f, 0.4f, 0.9f};
+
     private final IMultiPartialDiskRenderer renderer;
-    private FolderInfo rootFolder;
+    // Layout side, only touched by whichever thread runs layout()
     private float centerX, centerY, radius;
-    private Map<String, FolderPosition> folderPositions;
+    // Retained layout of the published tree; only folders flagged by the calculator are read again
+    private Wedge root;
+    private int generation;
+    private volatile int instanceBudget = Integer.MAX_VALUE;
+    private volatile float pixelsPerUnit = 300f;
+    private volatile FolderInfo baseline;
+    // Settings the retained layout was built with
+    private int layoutBudget = Integer.MAX_VALUE;
+    private float layoutPixelsPerUnit;
+    private FolderInfo layoutBaseline;
+    private int maxVisibleLevel;
+    private final ArrayDeque<Wedge> ring = new ArrayDeque<>();
+    // Finished frames go from the layout side to the render thread and back, so two or three are reused forever
+    private final AtomicReference<FrameSnapshot> latest = new AtomicReference<>();
+    private final AtomicReference<FrameSnapshot> retired = new AtomicReference<>();
+    private volatile FrameSnapshot presented = new FrameSnapshot();
+    private volatile Thread layoutThread;
+    private volatile boolean layoutRunning;
+    private volatile Runnable frameListener;
+    private ConcurrentHierarchicalFolderSizeCalculator layoutCalculator;
+
     public SunburstFolderSizeVisualizer(IMultiPartialDiskRenderer renderer) {
 
         this.renderer = renderer;
-        this.folderPositions = new HashMap<>(1024);
     }
-    public void visualize(ConcurrentHierarchicalFolderSizeCalculator.FolderInfo rootFolder,
+
+    // Caps the wedges of a frame: siblings narrower than a couple of pixels become one "other" wedge per parent,
+    // which is never descended into, and only whole rings that fit the budget are drawn. The cost then follows
+    // the screen, not the tree. Integer.MAX_VALUE goes back to dropping wedges under 0.05 degrees.
+    public void setInstanceBudget(int instanceBudget) {
+        if (instanceBudget < 1) {
+            throw new IllegalArgumentException("The budget must allow at least one wedge");
+        }
+        this.instanceBudget = instanceBudget;
+        requestLayout();
+    }
+
+    // Colors every wedge by how much its folder grew or shrank since the baseline scan, matched by name
+    // level by level; null goes back to the palette
+    public void setBaseline(FolderInfo baseline) {
+        this.baseline = baseline;
+        requestLayout();
+    }
+
+    public void setViewportSize(int width, int height) {
+        pixelsPerUnit = PartialDiskLod.pixelsPerUnit(width, height);
+        renderer.setViewportSize(width, height);
+        requestLayout();
+    }
+
+    // Called on the layout thread after each frame it publishes, for a render loop that sleeps until then
+    public void setFrameListener(Runnable frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    // Wakes the layout thread, which otherwise sleeps until the calculator reports a change
+    public void requestLayout() {
+        Thread thread = layoutThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Lays out the calculator's tree on a worker thread; the render thread then only calls present().
+    // The thread sleeps until the calculator signals a change and publishes at most one frame per interval.
+    public synchronized void startLayoutThread(ConcurrentHierarchicalFolderSizeCalculator calculator,
         float centerX, float centerY, float radius) {
-        this.rootFolder = rootFolder;
-        this.centerX = centerX;
-        this.centerY = centerY;
-        this.radius = radius;
-        renderer.init(32);
-        drawSunburst(rootFolder, centerX, centerY, radius, 0, 360, 0);
-    }
-
-
-    private void drawSunburst(FolderInfo folderInfo,
-                              float centerX, float centerY, float radius,
-                              float startAngle, float sweepAngle, int level) {
-        if (folderInfo == null) return;
-        // Store folder position
-        folderPositions.put(folderInfo.getPath(), new FolderPosition(startAngle, sweepAngle, level));
-
-        // Draw this folder
-        float[] color = chooseColorFromPath(folderInfo.getPath(),level);
-        renderer.add(centerX, centerY, startAngle, sweepAngle,
-                     radius * level , radius * level  + radius,
-                     color[0], color[1], color[2], 1f);
-
-        // Calculate total size of subfolders
-        long totalSubfolderSize = folderInfo.getSubfolderPaths().stream()
-            .mapToLong(path -> {
-                FolderInfo subfolder =
-                    folderInfo.getCalculator().getFolderInfo(path);
-                return subfolder != null ? subfolder.getSize() : 0;
-            })
-            .sum();
-
-        // Draw subfolders
-        float currentAngle = startAngle;
-        for (String subfolderPath : folderInfo.getSubfolderPaths()) {
-            FolderInfo subfolder =
-                rootFolder.getCalculator().getFolderInfo(subfolderPath);
-            if (subfolder != null) {
-                float subfolderSweepAngle = (float) subfolder.getSize() / totalSubfolderSize * sweepAngle;
-                if (subfolderSweepAngle < 0.05f) {
-                    continue; // Skip small subfolders
+        stopLayoutThread();
+        layoutRunning = true;
+        Thread thread = new Thread(() -> {
+            while (layoutRunning) {
+                if (layout(calculator.getRootFolderInfo(), centerX, centerY, radius)) {
+                    Runnable listener = frameListener;
+                    if (listener != null) {
+                        listener.run();
+                    }
+                    // Looks again after the interval: signals for changes made meanwhile were throttled away
+                    LockSupport.parkNanos(LAYOUT_INTERVAL_NANOS);
+                } else {
+                    // A signal sent while laying out leaves a permit, so this returns at once
+                    LockSupport.park(this);
                 }
-                drawSunburst(subfolder, centerX, centerY, radius,
-                             currentAngle, subfolderSweepAngle, level + 1);
-                currentAngle += subfolderSweepAngle;
             }
+        }, "sunburst-layout");
+        thread.setDaemon(true);
+        layoutThread = thread;
+        calculator.setChangeListener(this::requestLayout, LAYOUT_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+        layoutCalculator = calculator;
+        thread.start();
+    }
+
+    public synchronized void stopLayoutThread() {
+        if (layoutThread == null) {
+            return;
+        }
+        layoutRunning = false;
+        layoutCalculator.setChangeListener(null, 0, TimeUnit.NANOSECONDS);
+        LockSupport.unpark(layoutThread);
+        try {
+            layoutThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        layoutThread = null;
+    }
+
+    // Lays out and presents on the calling thread, for callers without a layout thread
+    public boolean visualize(ConcurrentHierarchicalFolderSizeCalculator.FolderInfo rootFolder,
+        float centerX, float centerY, float radius) {
+        layout(rootFolder, centerX, centerY, radius);
+        return present();
+    }
+
+    // Render thread: hands the newest finished frame to the renderer. Returns false, without touching
+    // the renderer, when no new frame was published since the previous call.
+    public boolean present() {
+        FrameSnapshot frame = latest.getAndSet(null);
+        if (frame == null) {
+            return false;
+        }
+        renderer.cleanInstances();
+        float[] instances = frame.instances;
+        for (int index = 0; index < frame.count * FrameSnapshot.FLOATS_PER_INSTANCE;
+             index += FrameSnapshot.FLOATS_PER_INSTANCE) {
+            renderer.add(instances[index], instances[index + 1], instances[index + 2], instances[index + 3],
+                         instances[index + 4], instances[index + 5],
+                         instances[index + 6], instances[index + 7], instances[index + 8], instances[index + 9]);
+        }
+        renderer.updateInstanceData();
+        FrameSnapshot previous = presented;
+        presented = frame;
+        retired.set(previous);
+        return true;
+    }
+
+    // Layout side: brings the retained layout up to date and publishes a new frame when it changed
+    boolean layout(FolderInfo rootFolder, float centerX, float centerY, float radius) {
+        long startNanos = System.nanoTime();
+        if (rootFolder == null) {
+            if (root == null) {
+                return false;
+            }
+            root = null;
+        } else if (root == null || rootFolder.getCalculator().getGeneration() != generation
+            || !root.path.equals(rootFolder.getPath())
+            || centerX != this.centerX || centerY != this.centerY || radius != this.radius
+            || instanceBudget != layoutBudget || pixelsPerUnit != layoutPixelsPerUnit || baseline != layoutBaseline) {
+            generation = rootFolder.getCalculator().getGeneration();
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.radius = radius;
+            layoutBudget = instanceBudget;
+            layoutPixelsPerUnit = pixelsPerUnit;
+            layoutBaseline = baseline;
+            // Rings starting beyond the farthest corner of the viewport are off screen
+            maxVisibleLevel = (int) ((Math.sqrt(2) + Math.hypot(centerX, centerY)) / radius);
+            rootFolder.pollChanged();
+            root = new Wedge(rootFolder, rootFolder.getPath(), 0, 0f, 1f);
+            root.baseline = layoutBaseline;
+            colorByDelta(root);
+            layout(root, rootFolder, 360);
+        } else if (rootFolder.pollChanged()) {
+            colorByDelta(root);
+            layout(root, rootFolder, 360);
+        } else {
+            return false;
         }
+        // A frame the render thread never picked up is overwritten, otherwise the one it retired
+        FrameSnapshot frame = latest.getAndSet(null);
+        if (frame == null) {
+            frame = retired.getAndSet(null);
+        }
+        if (frame == null) {
+            frame = new FrameSnapshot();
+        }
+        frame.clear(centerX, centerY, radius);
+        if (root != null && isBudgeted()) {
+            drawRings(frame);
+        } else if (root != null) {
+            drawSunburst(root, 0, 360, frame);
+        }
+        frame.layoutNanos = System.nanoTime() - startNanos;
+        latest.set(frame);
+        return true;
     }
+
+    // Reads a changed folder's subfolders again. Subfolders that did not change keep their retained subtree,
+    // whose angles are relative and so follow the new share of their parent for free.
+    private void layout(Wedge wedge, FolderInfo folderInfo, float sweepAngle) {
+        wedge.layoutSweepAngle = sweepAngle;
+        boolean budgeted = isBudgeted();
+        if (budgeted && wedge.level >= maxVisibleLevel) {
+            wedge.children = Collections.emptyList();
+            return;
+        }
+        // Direct references, no path is built or looked up for a subfolder that is already laid out
+        List<FolderInfo> subfolders = folderInfo.getSubfolders();
+        long totalSubfolderSize = folderInfo.getSubfoldersSize();
+        Map<FolderInfo, Wedge> previous = wedge.children.isEmpty() ? Collections.emptyMap() : new HashMap<>();
+        for (Wedge child : wedge.children) {
+            if (!child.other) {
+                previous.put(child.folder, child);
+            }
+        }
+        Map<String, FolderInfo> baselineChildren = Collections.emptyMap();
+        if (wedge.baseline != null) {
+            baselineChildren = new HashMap<>();
+            for (FolderInfo baselineChild : wedge.baseline.getSubfolders()) {
+                baselineChildren.put(baselineChild.getName(), baselineChild);
+            }
+        }
+        List<Wedge> children = new ArrayList<>();
+        float offset = 0;
+        float otherShare = 0;
+        for (int i = 0; i < subfolders.size(); i++) {
+            FolderInfo subfolder = subfolders.get(i);
+            // Polled even when skipped, a folder that becomes visible later is laid out from scratch anyway
+            boolean changed = subfolder.pollChanged();
+            float share = totalSubfolderSize == 0 ? 0 : (float) subfolder.getSize() / totalSubfolderSize;
+            if (budgeted) {
+                if (arcPixels(share * sweepAngle, wedge.level + 1) < MIN_WEDGE_PIXELS) {
+                    otherShare += share;
+                    continue;
+                }
+            } else if (share * sweepAngle < 0.05f) {
+                // Skip small subfolders, still leaving their gap so positions do not depend on what is culled
+                offset += share;
+                continue;
+            }
+            Wedge child = previous.get(subfolder);
+            if (child == null) {
+                child = new Wedge(subfolder, subfolder.getPath(), wedge.level + 1, offset, share);
+                child.baseline = baselineChildren.get(subfolder.getName());
+                colorByDelta(child);
+                layout(child, subfolder, share * sweepAngle);
+            } else {
+                child.offset = offset;
+                child.share = share;
+                if (changed) {
+                    colorByDelta(child);
+                }
+                // A wider wedge may now show subfolders that were skipped when it was laid out
+                if (changed || share * sweepAngle > child.layoutSweepAngle
+                    || budgeted && share * sweepAngle < child.layoutSweepAngle * RELAYOUT_SHRINK) {
+                    layout(child, subfolder, share * sweepAngle);
+                }
+            }
+            children.add(child);
+            offset += share;
+        }
+        if (otherShare > 0) {
+            // After the kept subfolders, so the merged ones leave no gap; it answers hit tests with the parent
+            children.add(new Wedge(null, wedge.path, wedge.level + 1, offset, otherShare));
+        }
+        wedge.children = children;
+    }
+
+    // Shade by the change relative to the larger of the two sizes, so a new folder is fully red
+    private void colorByDelta(Wedge wedge) {
+        if (layoutBaseline == null) {
+            return;
+        }
+        long before = wedge.baseline == null ? 0 : wedge.baseline.getSize();
+        long after = wedge.folder.getSize();
+        float[] target = after >= before ? GROWN_COLOR : SHRUNK_COLOR;
+        float change = (float) Math.sqrt(Math.abs(after - before) / (double) Math.max(1, Math.max(before, after)));
+        wedge.r = UNCHANGED_COLOR[0] + (target[0] - UNCHANGED_COLOR[0]) * change;
+        wedge.g = UNCHANGED_COLOR[1] + (target[1] - UNCHANGED_COLOR[1]) * change;
+        wedge.b = UNCHANGED_COLOR[2] + (target[2] - UNCHANGED_COLOR[2]) * change;
+    }
+
+    private boolean isBudgeted() {
+        return layoutBudget != Integer.MAX_VALUE;
+    }
+
+    // Length of a wedge's outer arc on screen
+    private float arcPixels(float sweepAngle, int level) {
+        return (float) Math.toRadians(sweepAngle) * radius * (level + 1) * layoutPixelsPerUnit;
+    }
+
+    // Ring by ring from the center, stopping before the first ring that would exceed the budget
+    private void drawRings(FrameSnapshot frame) {
+        root.startAngle = 0;
+        root.sweepAngle = 360;
+        ring.add(root);
+        while (!ring.isEmpty() && frame.count + ring.size() <= layoutBudget) {
+            for (int remaining = ring.size(); remaining > 0; remaining--) {
+                Wedge wedge = ring.poll();
+                frame.add(wedge.startAngle, wedge.sweepAngle, wedge.level, wedge.r, wedge.g, wedge.b);
+                frame.ringIndex.add(wedge.level, wedge.startAngle, wedge.sweepAngle, wedge.path);
+                for (Wedge child : wedge.children) {
+                    child.startAngle = wedge.startAngle + child.offset * wedge.sweepAngle;
+                    child.sweepAngle = child.share * wedge.sweepAngle;
+                    ring.add(child);
+                }
+            }
+        }
+        ring.clear();
+    }
+
+    private void drawSunburst(Wedge wedge, float startAngle, float sweepAngle, FrameSnapshot frame) {
+        if (sweepAngle < 0.05f) {
+            return; // Shrunk below visibility since it was laid out
+        }
+        frame.add(startAngle, sweepAngle, wedge.level, wedge.r, wedge.g, wedge.b);
+        frame.ringIndex.add(wedge.level, startAngle, sweepAngle, wedge.path);
+        for (Wedge child : wedge.children) {
+            drawSunburst(child, startAngle + child.offset * sweepAngle, child.share * sweepAngle, frame);
+        }
+    }
+
     private float[] chooseColorFromPath(String path, int level) {
         int hash = path.hashCode()+level;
         int index = abs( (hash % (palette.length/3)));
@@ -82,25 +357,23 @@ public class SunburstFolderSizeVisualizer {
         return hsvToRgb(hue, saturation, brightness);
     }
 
+    // Layout time of the frame the last present() handed over
+    public long getPresentedLayoutNanos() {
+        return presented.layoutNanos;
+    }
+
+    // Answers for the frame on screen
     public String findPathFromCoordinate(float x, float y) {
-        float dx = x - centerX;
-        float dy = y - centerY;
+        FrameSnapshot frame = presented;
+        float dx = x - frame.centerX;
+        float dy = y - frame.centerY;
         float distance = (float) Math.sqrt(dx * dx + dy * dy);
         float angle = (float) Math.toDegrees(Math.atan2(dy, dx));
         if (angle < 0) angle += 360;
 
-        int level = (int) (distance / radius);
+        int level = (int) (distance / frame.radius);
 
-        for (Map.Entry<String, FolderPosition> entry : folderPositions.entrySet()) {
-            FolderPosition pos = entry.getValue();
-            if (pos.level == level) {
-                float endAngle = pos.startAngle + pos.sweepAngle;
-                if (angle >= pos.startAngle && angle < endAngle) {
-                    return entry.getKey();
-                }
-            }
-        }
-        return null;
+        return frame.ringIndex.find(level, angle);
     }
 
     private float[] hsvToRgb(float hue, float saturation, float value) {
@@ -121,18 +394,79 @@ public class SunburstFolderSizeVisualizer {
     }
 
     public void cleanup() {
+        stopLayoutThread();
         renderer.cleanup();
     }
 
-    private static class FolderPosition {
+    private class Wedge {
+        // Null for the merged wedge
+        final FolderInfo folder;
+        final String path;
+        final int level;
+        // Stands for the parent's subfolders too narrow to draw
+        final boolean other;
+        float r, g, b;
+        // Same folder in the baseline scan, null when there is none or it is new
+        FolderInfo baseline;
+        // Start and sweep as fractions of the parent's sweep
+        float offset;
+        float share;
+        // Absolute sweep the subfolders were last culled against
+        float layoutSweepAngle;
+        // Absolute angles, only while drawing ring by ring
         float startAngle;
         float sweepAngle;
-        int level;
+        List<Wedge> children = Collections.emptyList();
 
-        FolderPosition(float startAngle, float sweepAngle, int level) {
-            this.startAngle = startAngle;
-            this.sweepAngle = sweepAngle;
+        Wedge(FolderInfo folder, String path, int level, float offset, float share) {
+            this.folder = folder;
+            this.path = path;
             this.level = level;
+            this.other = folder == null;
+            this.offset = offset;
+            this.share = share;
+            float[] color = other ? OTHER_COLOR : chooseColorFromPath(path, level);
+            this.r = color[0];
+            this.g = color[1];
+            this.b = color[2];
+        }
+    }
+    // Instances and hit-test index of one finished layout. Not changed while the render thread may read it.
+    private static class FrameSnapshot {
+        static final int FLOATS_PER_INSTANCE = 10;
+
+        float[] instances = new float[1024 * FLOATS_PER_INSTANCE];
+        int count;
+        final RingIndex ringIndex = new RingIndex();
+        float centerX, centerY;
+        float radius = 1;
+        // Time the layout thread spent on this frame
+        long layoutNanos;
+
+        void clear(float centerX, float centerY, float radius) {
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.radius = radius;
+            count = 0;
+            ringIndex.clear();
+        }
+
+        void add(float startAngle, float sweepAngle, int level, float r, float g, float b) {
+            int index = count * FLOATS_PER_INSTANCE;
+            if (index == instances.length) {
+                instances = Arrays.copyOf(instances, index * 2);
+            }
+            instances[index] = centerX;
+            instances[index + 1] = centerY;
+            instances[index + 2] = startAngle;
+            instances[index + 3] = sweepAngle;
+            instances[index + 4] = radius * level;
+            instances[index + 5] = radius * level + radius;
+            instances[index + 6] = r;
+            instances[index + 7] = g;
+            instances[index + 8] = b;
+            instances[index + 9] = 1f;
+            count++;
         }
     }
     int palette[] =
@@ -0,0 +1,69 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+// Wraps the renderer to time its upload and draw on the CPU and, through timer queries, on the GPU.
+// The GPU timer is created in init(), on the thread that owns the context.
+class TimedRenderer implements IMultiPartialDiskRenderer {
+  private final IMultiPartialDiskRenderer delegate;
+  private final FrameTimings timings;
+  private GpuTimer gpuTimer;
+
+  TimedRenderer(IMultiPartialDiskRenderer delegate, FrameTimings timings) {
+    this.delegate = delegate;
+    this.timings = timings;
+  }
+
+  // The text pass is timed on the same queries, so every GPU phase of a frame comes from one ring
+  GpuTimer getGpuTimer() {
+    return gpuTimer;
+  }
+
+  @Override
+  public void init(int slices) {
+    delegate.init(slices);
+    gpuTimer = new GpuTimer(timings, FrameTimings.Phase.GPU_UPLOAD, FrameTimings.Phase.GPU_DRAW,
+        FrameTimings.Phase.GPU_TEXT);
+  }
+
+  @Override
+  public void setViewportSize(int width, int height) {
+    delegate.setViewportSize(width, height);
+  }
+
+  @Override
+  public void add(float centerX, float centerY, float startAngle, float sweepAngle, float innerRadius,
+      float outerRadius, float r, float g, float b, float a) {
+    delegate.add(centerX, centerY, startAngle, sweepAngle, innerRadius, outerRadius, r, g, b, a);
+  }
+
+  @Override
+  public void cleanInstances() {
+    delegate.cleanInstances();
+  }
+
+  @Override
+  public void updateInstanceData() {
+    long start = System.nanoTime();
+    gpuTimer.begin(FrameTimings.Phase.GPU_UPLOAD);
+    delegate.updateInstanceData();
+    gpuTimer.end();
+    timings.record(FrameTimings.Phase.UPLOAD, System.nanoTime() - start);
+  }
+
+  @Override
+  public void render() {
+    long start = System.nanoTime();
+    gpuTimer.begin(FrameTimings.Phase.GPU_DRAW);
+    delegate.render();
+    gpuTimer.end();
+    timings.record(FrameTimings.Phase.DRAW, System.nanoTime() - start);
+  }
+
+  @Override
+  public void cleanup() {
+    gpuTimer.free();
+    delegate.cleanup();
+  }
+}
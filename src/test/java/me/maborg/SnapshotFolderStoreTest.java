@@ -0,0 +1,145 @@
+/***************************************************
+ * Marco Borgna 2024, all rights reserved          *
+ ***************************************************/
+package me.maborg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import me.maborg.ConcurrentHierarchicalFolderSizeCalculator.FolderInfo;
+import me.maborg.ConcurrentHierarchicalFolderSizeCalculator.StoreType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnapshotFolderStoreTest {
+    @TempDir
+    Path temp;
+
+    @Test
+    void multiRootObjectsScanRoundTrips() throws Exception {
+        Path first = folderWithFiles("first", 100, 20);
+        Path second = folderWithFiles("second", 7, 3000);
+        List<String> roots = Arrays.asList(first.toString(), second.toString());
+        Path snapshot = temp.resolve("scan.snapshot");
+
+        ConcurrentHierarchicalFolderSizeCalculator calculator =
+            new ConcurrentHierarchicalFolderSizeCalculator(1, StoreType.OBJECTS);
+        calculator.setSnapshotFile(snapshot);
+        calculator.startCalculation(roots).awaitTermination();
+        FolderInfo live = calculator.getRootFolderInfo();
+        assertEquals("", live.getPath());
+        Set<String> liveNames = new HashSet<>();
+        for (FolderInfo root : live.getSubfolders()) {
+            liveNames.add(root.getName());
+        }
+        assertEquals(new HashSet<>(roots), liveNames);
+
+        SnapshotFolderStore opened = SnapshotFolderStore.open(calculator, snapshot);
+        assertEquals(new HashSet<>(roots), new HashSet<>(opened.getRootFolderInfo().getSubfolderPaths()));
+        FolderInfo reopened = opened.getFolderInfo(second.toString());
+        assertNotNull(reopened);
+        assertEquals(second.toString(), reopened.getName());
+        assertEquals(7 + 3000, reopened.getSize());
+        assertNotNull(opened.getFolderInfo(first.resolve("sub").toString()));
+        assertEquals(live.getSize(), opened.getRootFolderInfo().getSize());
+    }
+
+    @Test
+    void matchingSnapshotIsServedByAFreshCalculator() throws Exception {
+        Path first = folderWithFiles("first", 100, 20);
+        Path second = folderWithFiles("second", 7, 3000);
+        List<String> roots = Arrays.asList(first.toString(), second.toString());
+        Path snapshot = temp.resolve("scan.snapshot");
+
+        ConcurrentHierarchicalFolderSizeCalculator calculator =
+            new ConcurrentHierarchicalFolderSizeCalculator(1, StoreType.OBJECTS);
+        calculator.setSnapshotFile(snapshot);
+        calculator.startCalculation(roots).awaitTermination();
+
+        ConcurrentHierarchicalFolderSizeCalculator fresh =
+            new ConcurrentHierarchicalFolderSizeCalculator(1, StoreType.OBJECTS);
+        fresh.setSnapshotFile(snapshot);
+        fresh.setIncremental(true);
+        ScanSession session = fresh.startCalculation(roots);
+        // Published before the rescan runs, so the tree is there from the start
+        FolderInfo root = fresh.getRootFolderInfo();
+        assertNotNull(root);
+        assertEquals(calculator.getRootFolderInfo().getSize(), root.getSize());
+        session.awaitTermination();
+        assertTrue(Files.size(snapshot) > 0);
+    }
+
+    @Test
+    void truncatedSnapshotIsRefused() throws Exception {
+        Path folder = folderWithFiles("scanned", 100, 20);
+        Path snapshot = temp.resolve("scan.snapshot");
+        ConcurrentHierarchicalFolderSizeCalculator calculator = new ConcurrentHierarchicalFolderSizeCalculator();
+        calculator.setSnapshotFile(snapshot);
+        calculator.startCalculation(folder.toString()).awaitTermination();
+        long length = Files.size(snapshot);
+
+        Path truncated = temp.resolve("truncated.snapshot");
+        for (long keep : new long[] {0, 10, 32, 40, length / 2, length - 1}) {
+            Files.copy(snapshot, truncated, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(truncated, StandardOpenOption.WRITE)) {
+                channel.truncate(keep);
+            }
+            assertThrows(IOException.class, () -> SnapshotFolderStore.open(calculator, truncated));
+        }
+
+        // The fresh scan replaces the damaged file instead of failing on it
+        ConcurrentHierarchicalFolderSizeCalculator fresh = new ConcurrentHierarchicalFolderSizeCalculator();
+        fresh.setSnapshotFile(truncated);
+        fresh.startCalculation(folder.toString()).awaitTermination();
+        assertEquals(100 + 20, fresh.getRootFolderInfo().getSize());
+        assertEquals(100 + 20, SnapshotFolderStore.open(fresh, truncated).getRootFolderInfo().getSize());
+    }
+
+    @Test
+    void recordCountPastTheRecordsIsRefused() throws Exception {
+        // The folder count, after the magic and the version
+        assertCorruptionRefused(8, 1000);
+    }
+
+    @Test
+    void childRangePastTheLastRecordIsRefused() throws Exception {
+        // The root record's child count, after the header, size, last modified time, parent and first child
+        assertCorruptionRefused(32 + 8 + 8 + 4 + 4, 1000);
+    }
+
+    private void assertCorruptionRefused(long position, int value) throws Exception {
+        Path folder = folderWithFiles("scanned", 100, 20);
+        Path snapshot = temp.resolve("scan.snapshot");
+        ConcurrentHierarchicalFolderSizeCalculator calculator = new ConcurrentHierarchicalFolderSizeCalculator();
+        calculator.setSnapshotFile(snapshot);
+        calculator.startCalculation(folder.toString()).awaitTermination();
+
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, value), position);
+        }
+        assertThrows(IOException.class, () -> SnapshotFolderStore.open(calculator, snapshot));
+    }
+
+    // A folder holding two files and one subfolder with a third file of the given size
+    private Path folderWithFiles(String name, int fileBytes, int subfolderFileBytes) throws IOException {
+        Path folder = Files.createDirectories(temp.resolve(name));
+        Files.write(folder.resolve("a.bin"), new byte[fileBytes / 2]);
+        Files.write(folder.resolve("b.bin"), new byte[fileBytes - fileBytes / 2]);
+        Path sub = Files.createDirectories(folder.resolve("sub"));
+        Files.write(sub.resolve("c.bin"), new byte[subfolderFileBytes]);
+        return folder;
+    }
+}